@@ -0,0 +1,81 @@
+package cs224n.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-call cost of the Counter and CounterMap operations the models use,
+ * on keys drawn from a fixed set of words.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CounterBenchmark {
+
+  static final int NUM_KEYS = 1024;
+
+  String[] keys;
+  String[] values;
+  Counter<String> counter;
+  CounterMap<String, String> counterMap;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Random random = new Random(224L);
+    keys = new String[NUM_KEYS];
+    values = new String[NUM_KEYS];
+    counter = new Counter<String>();
+    counterMap = new CounterMap<String, String>();
+    for (int k = 0; k < NUM_KEYS; k++) {
+      keys[k] = "s" + random.nextInt(10000);
+      values[k] = "t" + random.nextInt(10000);
+      counter.incrementCount(keys[k], 1.0);
+      counterMap.incrementCount(keys[k], values[k], 1.0);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_KEYS)
+  public Counter<String> counterIncrementCount() {
+    for (String key : keys) {
+      counter.incrementCount(key, 1.0);
+    }
+    return counter;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_KEYS)
+  public double counterGetCount() {
+    double total = 0;
+    for (String key : keys) {
+      total += counter.getCount(key);
+    }
+    return total;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_KEYS)
+  public double counterMapGetCount() {
+    double total = 0;
+    for (int k = 0; k < NUM_KEYS; k++) {
+      total += counterMap.getCount(keys[k], values[(k * 7) % NUM_KEYS]);
+    }
+    return total;
+  }
+}
@@ -0,0 +1,59 @@
+package cs224n.wordaligner;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * align() throughput of each model, in sentence pairs per second, over the
+ * synthetic corpus it was trained on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class AlignBenchmark {
+
+  static final int NUM_PAIRS = 2000;
+
+  @Param({"BaselineWordAligner", "PMIModel", "IBM1Model", "IBM2Model"})
+  String model;
+
+  List<SentencePair> pairs;
+  WordAligner wordAligner;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    pairs = SyntheticCorpus.generate(NUM_PAIRS, 5000);
+    if (model.equals("IBM2Model")) {
+      // IBM2 initializes from the model file IBM1 writes
+      new IBM1Model().train(pairs);
+    }
+    wordAligner = (WordAligner) Class.forName("cs224n.wordaligner." + model).newInstance();
+    wordAligner.train(pairs);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_PAIRS)
+  public void align(Blackhole blackhole) {
+    for (SentencePair pair : pairs) {
+      blackhole.consume(wordAligner.align(pair));
+    }
+  }
+}
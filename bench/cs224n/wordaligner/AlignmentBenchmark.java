@@ -0,0 +1,56 @@
+package cs224n.wordaligner;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of Alignment.containsSureAlignment over every cell of a 30 x 30
+ * alignment grid, as the AER computation probes it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class AlignmentBenchmark {
+
+  static final int LENGTH = 30;
+
+  Alignment alignment;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Random random = new Random(224L);
+    alignment = new Alignment();
+    for (int i = 0; i < LENGTH; i++) {
+      alignment.addPredictedAlignment(i, random.nextInt(LENGTH));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LENGTH * LENGTH)
+  public int containsSureAlignment() {
+    int found = 0;
+    for (int i = 0; i < LENGTH; i++) {
+      for (int j = 0; j < LENGTH; j++) {
+        if (alignment.containsSureAlignment(i, j))
+          found++;
+      }
+    }
+    return found;
+  }
+}
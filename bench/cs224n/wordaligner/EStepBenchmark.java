@@ -0,0 +1,56 @@
+package cs224n.wordaligner;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time of one single-threaded E-step of each EM model over the synthetic
+ * corpus, without the M-step.  IBM2 starts from the IBM1 model trained in
+ * setup, as in a normal run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class EStepBenchmark {
+
+  List<SentencePair> pairs;
+  IBM1Model ibm1;
+  IBM2Model ibm2;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    pairs = SyntheticCorpus.generate(5000, 5000);
+    Corpus corpus = new ListCorpus(pairs);
+    // Training writes the IBM1 model file that IBM2 initializes from
+    new IBM1Model().train(corpus);
+    ibm1 = new IBM1Model();
+    ibm1.initialize(corpus);
+    ibm2 = new IBM2Model();
+    ibm2.initialize(corpus);
+  }
+
+  @Benchmark
+  public double ibm1EStep() {
+    return ibm1.expectationStep(pairs);
+  }
+
+  @Benchmark
+  public double ibm2EStep() {
+    return ibm2.expectationStep(pairs);
+  }
+}
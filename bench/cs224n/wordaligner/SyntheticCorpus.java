@@ -0,0 +1,59 @@
+package cs224n.wordaligner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A fixed, randomly generated parallel corpus for the benchmarks.  Each
+ * source word has one preferred translation, and target sentences are
+ * noisy, locally reordered translations of their source sentences, so the
+ * models see realistic co-occurrence and distortion statistics.  The same
+ * seed always gives the same corpus.
+ */
+public class SyntheticCorpus {
+
+  public static final long SEED = 224L;
+
+  /**
+   * Generates numPairs sentence pairs over vocabularies of vocabularySize
+   * source and target words, with source lengths from 5 to 30.
+   */
+  public static List<SentencePair> generate(int numPairs, int vocabularySize) {
+    Random random = new Random(SEED);
+    Vocabulary vocabulary = new Vocabulary();
+    List<SentencePair> pairs = new ArrayList<SentencePair>(numPairs);
+    for (int id = 0; id < numPairs; id++) {
+      int n = 5 + random.nextInt(26);
+      List<String> sourceWords = new ArrayList<String>(n);
+      List<String> targetWords = new ArrayList<String>(n + 2);
+      for (int j = 0; j < n; j++) {
+        int word = zipf(random, vocabularySize);
+        sourceWords.add("s" + word);
+        // Mostly the preferred translation, sometimes a random word, sometimes nothing
+        double r = random.nextDouble();
+        if (r < 0.8) {
+          targetWords.add("t" + word);
+        } else if (r < 0.95) {
+          targetWords.add("t" + zipf(random, vocabularySize));
+        }
+      }
+      // Swap a few neighbours and add a couple of unaligned function words
+      for (int i = 1; i < targetWords.size(); i++) {
+        if (random.nextDouble() < 0.1) {
+          targetWords.set(i - 1, targetWords.set(i, targetWords.get(i - 1)));
+        }
+      }
+      for (int k = random.nextInt(3); k > 0; k--) {
+        targetWords.add(random.nextInt(targetWords.size() + 1), "t" + random.nextInt(10));
+      }
+      pairs.add(new SentencePair(id, "synthetic", targetWords, sourceWords, vocabulary));
+    }
+    return pairs;
+  }
+
+  // Word frequencies roughly follow Zipf's law, as in real text
+  private static int zipf(Random random, int vocabularySize) {
+    return (int) Math.pow(vocabularySize, random.nextDouble()) - 1;
+  }
+}
@@ -0,0 +1,318 @@
+package cs224n.assignments;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cs224n.util.Pair;
+import cs224n.wordaligner.SentencePair;
+import cs224n.wordaligner.Vocabulary;
+
+/**
+ * A preprocessed copy of a training corpus, so that runs can skip the SGML
+ * stripping, tokenization and interning of the raw files.  The cache is
+ * read through a memory map and records which files it was built from,
+ * with their modification times and lengths; if any of them changed, the
+ * cache is stale and is ignored.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   int    MAGIC
+ *   int    VERSION
+ *   long   number of sentence pairs P
+ *   long   offset of the vocabulary
+ *   int    number of file pairs F, then F x (target file, source file),
+ *          each a string, long last modified, long length
+ *   P x    (int sentence ID, int file pair, int m, int n, m target IDs, n source IDs)
+ *   int    number of source words S, then S strings
+ *   int    number of target words T, then T strings
+ * </pre>
+ * Each string is an int byte length followed by UTF-8 bytes.  Word IDs
+ * index the cache's own word lists.
+ *
+ * Run main() to build the cache for a training directory once.
+ */
+public class CorpusCache {
+
+  public static final int MAGIC = 0x49424d43; // "IBMC"
+  public static final int VERSION = 1;
+
+  /**
+   * Cache file looked for in the training directory by default.
+   */
+  public static final String DEFAULT_NAME = "FilePairs.training.bin";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // The file is mapped in windows of at most this many bytes
+  private static final long MAX_WINDOW = 1L << 30;
+
+  /**
+   * Returns whether the cache exists and was built from exactly these
+   * files, none of which has changed since.
+   */
+  public static boolean isFresh(File cacheFile, List<Pair<String,String>> filePairs) {
+    if (!cacheFile.exists())
+      return false;
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+          return false;
+        in.readLong();
+        in.readLong();
+        if (in.readInt() != filePairs.size())
+          return false;
+        for (Pair<String,String> filePair : filePairs) {
+          if (!sameFile(in, filePair.getFirst()) || !sameFile(in, filePair.getSecond()))
+            return false;
+        }
+        return true;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static boolean sameFile(DataInputStream in, String fileName) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    File cached = new File(new String(bytes, UTF8));
+    File file = new File(fileName);
+    long lastModified = in.readLong();
+    long length = in.readLong();
+    return cached.getCanonicalPath().equals(file.getCanonicalPath())
+        && lastModified == file.lastModified() && length == file.length();
+  }
+
+  /**
+   * Preprocesses the given files into a cache, replacing any existing one.
+   * The files are read one at a time.
+   */
+  public static void write(List<Pair<String,String>> filePairs, File cacheFile) throws IOException {
+    File tmpFile = new File(cacheFile.getPath() + ".tmp");
+    Vocabulary vocabulary = new Vocabulary();
+    long numPairs = 0;
+    long vocabularyOffset;
+    FileOutputStream fileOut = new FileOutputStream(tmpFile);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(0); // patched below
+      out.writeLong(0);
+      out.writeInt(filePairs.size());
+      for (Pair<String,String> filePair : filePairs) {
+        writeFile(out, filePair.getFirst());
+        writeFile(out, filePair.getSecond());
+      }
+
+      for (int fileIndex = 0; fileIndex < filePairs.size(); fileIndex++) {
+        for (SentencePair pair : WordAlignmentTester.readAlignedSentences(filePairs.get(fileIndex), vocabulary)) {
+          int[] targetIds = pair.getTargetIds();
+          int[] sourceIds = pair.getSourceIds();
+          out.writeInt(pair.getSentenceID());
+          out.writeInt(fileIndex);
+          out.writeInt(targetIds.length);
+          out.writeInt(sourceIds.length);
+          for (int id : targetIds)
+            out.writeInt(id);
+          for (int id : sourceIds)
+            out.writeInt(id);
+          numPairs++;
+        }
+      }
+
+      out.flush();
+      vocabularyOffset = fileOut.getChannel().position();
+      out.writeInt(vocabulary.sourceSize());
+      for (int id = 0; id < vocabulary.sourceSize(); id++)
+        writeString(out, vocabulary.getSourceWord(id));
+      out.writeInt(vocabulary.targetSize());
+      for (int id = 0; id < vocabulary.targetSize(); id++)
+        writeString(out, vocabulary.getTargetWord(id));
+    } finally {
+      out.close();
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+    try {
+      raf.seek(8);
+      raf.writeLong(numPairs);
+      raf.writeLong(vocabularyOffset);
+    } finally {
+      raf.close();
+    }
+    cacheFile.delete();
+    if (!tmpFile.renameTo(cacheFile)) {
+      throw new IOException("Could not rename " + tmpFile + " to " + cacheFile);
+    }
+  }
+
+  /**
+   * Loads the first maxSentencePairs pairs of the cache, mapping their words
+   * to IDs of the given vocabulary.  Words get vocabulary IDs in the order
+   * the pairs use them, as when the raw files are read.
+   */
+  public static List<SentencePair> read(File cacheFile, List<Pair<String,String>> filePairs, int maxSentencePairs,
+                                        Vocabulary vocabulary) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+    try {
+      Reader reader = new Reader(raf.getChannel());
+      if (reader.getInt() != MAGIC || reader.getInt() != VERSION) {
+        throw new IOException("Not a corpus cache file: " + cacheFile);
+      }
+      long numPairs = reader.getLong();
+      long vocabularyOffset = reader.getLong();
+      int numFiles = reader.getInt();
+      for (int k = 0; k < 2 * numFiles; k++) {
+        reader.getString();
+        reader.getLong();
+        reader.getLong();
+      }
+      long recordsOffset = reader.position();
+
+      // Words are shared by every pair that uses them, as interning would do
+      reader.seek(vocabularyOffset);
+      String[] sourceWords = new String[reader.getInt()];
+      for (int id = 0; id < sourceWords.length; id++)
+        sourceWords[id] = reader.getString().intern();
+      String[] targetWords = new String[reader.getInt()];
+      for (int id = 0; id < targetWords.length; id++)
+        targetWords[id] = reader.getString().intern();
+      int[] sourceIds = new int[sourceWords.length];
+      int[] targetIds = new int[targetWords.length];
+      Arrays.fill(sourceIds, -1);
+      Arrays.fill(targetIds, -1);
+
+      reader.seek(recordsOffset);
+      int count = (int) Math.min(numPairs, maxSentencePairs);
+      List<SentencePair> sentencePairs = new ArrayList<SentencePair>(count);
+      for (int p = 0; p < count; p++) {
+        int sentenceID = reader.getInt();
+        int fileIndex = reader.getInt();
+        int m = reader.getInt();
+        int n = reader.getInt();
+        reader.ensure(4L * (m + n));
+        List<String> targetSentence = new ArrayList<String>(m);
+        int[] targetSentenceIds = new int[m];
+        for (int i = 0; i < m; i++) {
+          int id = reader.buffer.getInt();
+          if (targetIds[id] < 0)
+            targetIds[id] = vocabulary.addTargetWord(targetWords[id]);
+          targetSentence.add(targetWords[id]);
+          targetSentenceIds[i] = targetIds[id];
+        }
+        List<String> sourceSentence = new ArrayList<String>(n);
+        int[] sourceSentenceIds = new int[n];
+        for (int j = 0; j < n; j++) {
+          int id = reader.buffer.getInt();
+          if (sourceIds[id] < 0)
+            sourceIds[id] = vocabulary.addSourceWord(sourceWords[id]);
+          sourceSentence.add(sourceWords[id]);
+          sourceSentenceIds[j] = sourceIds[id];
+        }
+        sentencePairs.add(new SentencePair(sentenceID, filePairs.get(fileIndex).getFirst(),
+            targetSentence, sourceSentence, targetSentenceIds, sourceSentenceIds, vocabulary));
+      }
+      return sentencePairs;
+
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Reads a file through a window of it mapped into memory, moving the
+   * window whenever a read would run past its end.
+   */
+  private static class Reader {
+    final FileChannel channel;
+    final long fileSize;
+    long windowStart;
+    MappedByteBuffer buffer;
+
+    Reader(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.fileSize = channel.size();
+      seek(0);
+    }
+
+    long position() {
+      return windowStart + buffer.position();
+    }
+
+    void seek(long position) throws IOException {
+      windowStart = position;
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_WINDOW, fileSize - position));
+    }
+
+    void ensure(long bytes) throws IOException {
+      if (bytes > buffer.remaining()) {
+        if (position() + bytes > fileSize)
+          throw new IOException("Truncated corpus cache file");
+        seek(position());
+      }
+    }
+
+    int getInt() throws IOException {
+      ensure(4);
+      return buffer.getInt();
+    }
+
+    long getLong() throws IOException {
+      ensure(8);
+      return buffer.getLong();
+    }
+
+    String getString() throws IOException {
+      byte[] bytes = new byte[getInt()];
+      ensure(bytes.length);
+      buffer.get(bytes);
+      return new String(bytes, UTF8);
+    }
+  }
+
+  private static void writeFile(DataOutputStream out, String fileName) throws IOException {
+    File file = new File(fileName);
+    writeString(out, fileName);
+    out.writeLong(file.lastModified());
+    out.writeLong(file.length());
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Builds the cache for a training directory.
+   *
+   * Usage: CorpusCache /afs/ir/class/cs224n/pa1/data/french/training [cacheFile]
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("Usage: java cs224n.assignments.CorpusCache <trainingDir> [cacheFile]");
+      System.exit(1);
+    }
+    File cacheFile = new File(args.length > 1 ? args[1] : args[0] + "/" + DEFAULT_NAME);
+    long start = System.currentTimeMillis();
+    write(WordAlignmentTester.getAlignedFileList(args[0]), cacheFile);
+    System.out.println("Wrote " + cacheFile + " in " + (System.currentTimeMillis() - start) + " ms");
+  }
+}
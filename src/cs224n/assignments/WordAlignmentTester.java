@@ -1,19 +1,37 @@
 package cs224n.assignments;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.NoSuchElementException;
 import java.util.regex.Matcher;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import cs224n.util.CommandLineUtils;
 import cs224n.util.Pair;
+import cs224n.util.Shards;
 import cs224n.wordaligner.Alignment;
+import cs224n.wordaligner.Configurable;
+import cs224n.wordaligner.Corpus;
+import cs224n.wordaligner.IBM1Model;
+import cs224n.wordaligner.ListCorpus;
 import cs224n.wordaligner.SentencePair;
+import cs224n.wordaligner.ShardedEM;
+import cs224n.wordaligner.SinglePrecision;
+import cs224n.wordaligner.Vocabulary;
 import cs224n.wordaligner.WordAligner;
+import cs224n.wordaligner.WordAligners;
 
 /**
  * Harness for testing wordl alignments.  The code is hard-wired for the
@@ -65,6 +83,18 @@ public final class WordAlignmentTester {
     final int maxTrainingSentences = argMap.containsKey("-trainSentences") ? 
         Integer.parseInt(argMap.get("-trainSentences")) : Integer.MAX_VALUE;
     final boolean verbose = argMap.containsKey("-verbose");
+    final int numThreads = argMap.containsKey("-threads") ?
+        Math.max(1, Integer.parseInt(argMap.get("-threads"))) : 1;
+    final boolean streamTraining = argMap.containsKey("-streamTraining");
+    final boolean buildCorpusCache = argMap.containsKey("-corpusCache");
+    // Evaluate in double precision, then again with the model's tables rounded to floats
+    final boolean compareSinglePrecision = argMap.containsKey("-compareSinglePrecision");
+    // With -shards N, N worker processes each load every Nth training pair and run the
+    // E-step on it, and this process only holds the model (see ShardedEM)
+    final int numShards = argMap.containsKey("-shards") ? Math.max(0, Integer.parseInt(argMap.get("-shards"))) : 0;
+    // With -onlineUpdate, IBM1Model loads the model it saved last and folds the training
+    // pairs into it with stepwise EM (see IBM1Model.update()), instead of training anew
+    final boolean onlineUpdate = argMap.containsKey("-onlineUpdate");
     final String model = argMap.containsKey("-model") ? 
         argMap.get("-model") : "cs224n.wordaligner.BaselineWordAligner";
     final String language = argMap.containsKey("-language") ? argMap.get("-language") : FRENCH;
@@ -73,34 +103,67 @@ public final class WordAlignmentTester {
     if (outputFile.length() > 0) dataset = "";
     String basePath = argMap.containsKey("-dataPath") ? argMap.get("-dataPath") : DATA_PATH;
     basePath += dataset.equalsIgnoreCase("miniTest") ? "/mini" : "/"+language;
+    // Preprocessed training data is used for in-memory training sets whenever it
+    // is up to date, and (re)built only if a cache file is named explicitly
+    final File corpusCache = new File(buildCorpusCache ?
+        argMap.get("-corpusCache") : basePath+"/training/"+CorpusCache.DEFAULT_NAME);
 
     // Target language is hard-coded as English
     final String sourceFileExtension = GetLanguageExtension(language);
     final String targetFileExtension = "e";
 
+    // Worker processes of -shards are launched with the same arguments plus -shardWorker
+    if (argMap.containsKey("-shardWorker")) {
+      runShardWorker(model, argMap, basePath+"/training", maxTrainingSentences, numShards, streamTraining);
+      return;
+    }
+
     // Read training set.
     System.out.println("/// CS224n Word Alignment Tester ///");
     if (! dataset.equalsIgnoreCase("miniTest")) System.out.println("Language: " + language);
     System.out.println("Data path: "+basePath);
     if (! dataset.equals("")) System.out.println("Evaluation set: "+dataset);
     System.out.printf("Using up to %d training sentences.%n", maxTrainingSentences);
+    // Training and test sentences share one vocabulary of word IDs
+    Vocabulary vocabulary = new Vocabulary();
     List<SentencePair> trainingSentencePairs = new ArrayList<SentencePair>();
-    if ( !dataset.equalsIgnoreCase("miniTest") && maxTrainingSentences > 0) {
-      trainingSentencePairs = loadTrainingData(basePath+"/training", maxTrainingSentences);
+    boolean hasTrainingData = !dataset.equalsIgnoreCase("miniTest") && maxTrainingSentences > 0;
+    boolean sharded = hasTrainingData && numShards > 0;
+    if (buildCorpusCache && (sharded || (hasTrainingData && streamTraining))) {
+      // Streamed and sharded training reread the raw files on every pass
+      throw new RuntimeException("-corpusCache only applies to training sets loaded into memory; "
+          + "drop -streamTraining and -shards");
+    }
+    if (sharded) {
+      if (outputFile.length() > 0) {
+        throw new RuntimeException("-outputAlignments needs the training set in one process; drop -shards");
+      }
+      if (argMap.containsKey("-earlyStopSample")) {
+        // The sample would only be drawn from the evaluation pairs held here
+        throw new RuntimeException("-earlyStopSample needs the training set in one process; drop -shards");
+      }
+      System.out.printf("Training set: split across %d worker processes%n", numShards);
+    } else if (hasTrainingData && streamTraining) {
+      System.out.println("Training set: streamed from disk on every pass");
+    } else {
+      if (hasTrainingData) {
+        trainingSentencePairs = loadTrainingData(basePath+"/training", maxTrainingSentences, vocabulary,
+            corpusCache, buildCorpusCache);
+      }
+      System.out.printf("Training set size: %d%n", trainingSentencePairs.size());
     }
-    System.out.printf("Training set size: %d%n", trainingSentencePairs.size());
 
     // Read test set, if specified.
     List<SentencePair> testSentencePairs = new ArrayList<SentencePair>();
     Map<Integer,Alignment> goldAlignments = new HashMap<Integer, Alignment>();
     if (dataset.equalsIgnoreCase("test")) {
-      testSentencePairs = loadTestData(basePath+"/test", "test."+sourceFileExtension, "test."+targetFileExtension);
+      testSentencePairs = loadTestData(basePath+"/test", "test."+sourceFileExtension, "test."+targetFileExtension, vocabulary);
       goldAlignments = readGoldAlignments(basePath+"/test/test.wa");
     } else if (dataset.equalsIgnoreCase("dev")) {
-      testSentencePairs = loadTestData(basePath+"/trial", "trial."+sourceFileExtension, "trial."+targetFileExtension);
+      testSentencePairs = loadTestData(basePath+"/trial", "trial."+sourceFileExtension, "trial."+targetFileExtension, vocabulary);
       goldAlignments = readGoldAlignments(basePath+"/trial/trial.wa");
     } else if (dataset.equalsIgnoreCase("miniTest")) {
-      testSentencePairs = loadTestData(basePath, "mini."+sourceFileExtension, "mini."+targetFileExtension);
+      testSentencePairs = loadTestData(basePath, "mini."+sourceFileExtension, "mini."+targetFileExtension, vocabulary);
       goldAlignments = readGoldAlignments(basePath+"/mini.wa");
     } else {
       System.out.println("Model learning only. No evaluation will be performed.");
@@ -108,18 +171,153 @@ public final class WordAlignmentTester {
     System.out.printf("Evaluation set size: %d%n", testSentencePairs.size());
 
     // Add the test sentences to the training data. This is an unsupervised learner.
-    trainingSentencePairs.addAll(testSentencePairs);
+    Corpus trainingCorpus;
+    if (hasTrainingData && streamTraining && !sharded) {
+      trainingCorpus = new StreamingCorpus(getAlignedFileList(basePath+"/training"), maxTrainingSentences,
+          testSentencePairs, vocabulary);
+    } else {
+      trainingSentencePairs.addAll(testSentencePairs);
+      trainingCorpus = new ListCorpus(trainingSentencePairs);
+    }
 
     // Train model
     System.out.println("Model: "+model);
     WordAligner wordAligner = loadModel(model);
-    wordAligner.train(trainingSentencePairs);
+    if (wordAligner instanceof Configurable) {
+      Map<String,String> options = argMap;
+      if (compareSinglePrecision) {
+        // The comparison needs a model trained in double precision
+        options = new HashMap<String,String>(argMap);
+        options.remove("-singlePrecision");
+      }
+      ((Configurable) wordAligner).configure(options);
+    }
+    if (onlineUpdate) {
+      if (!(wordAligner instanceof IBM1Model)) {
+        throw new RuntimeException(model + " cannot train with -onlineUpdate");
+      }
+      if (sharded || (hasTrainingData && streamTraining)) {
+        throw new RuntimeException("-onlineUpdate needs the training set in memory; drop -shards and -streamTraining");
+      }
+      try {
+        ((IBM1Model) wordAligner).load(vocabulary);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      ((IBM1Model) wordAligner).update(trainingSentencePairs);
+    }
+    ShardedEM shards = null;
+    if (sharded) {
+      if (!(wordAligner instanceof ShardedEM.Model)) {
+        throw new RuntimeException(model + " cannot train with -shards");
+      }
+      shards = startShards(args, numShards, argMap.get("-shardDir"));
+      ((ShardedEM.Model) wordAligner).setShards(shards);
+    }
+    try {
+      if (!onlineUpdate)
+        wordAligner.train(trainingCorpus);
+    } finally {
+      if (shards != null) {
+        ((ShardedEM.Model) wordAligner).setShards(null);
+        shards.close();
+      }
+    }
 
     // Run inference and evaluate
     if (outputFile.length() > 0) {
-      write(wordAligner, trainingSentencePairs, outputFile);
+      write(wordAligner, trainingCorpus, outputFile, numThreads);
     } else {
-      test(wordAligner, testSentencePairs, goldAlignments, verbose);
+      double aer = test(wordAligner, testSentencePairs, goldAlignments, verbose, numThreads);
+      if (compareSinglePrecision && wordAligner instanceof SinglePrecision) {
+        System.out.println();
+        System.out.println("### Single precision tables ###");
+        ((SinglePrecision) wordAligner).useSinglePrecision();
+        double singleAer = test(wordAligner, testSentencePairs, goldAlignments, verbose, numThreads);
+        System.out.printf("%s:\t%+.4f%n", "AER difference (single - double)", singleAer - aer);
+      } else if (compareSinglePrecision) {
+        System.out.println("Model has no single precision mode; nothing to compare.");
+      }
+    }
+  }
+
+  /**
+   * Launches one worker process per shard, running this class with the
+   * given arguments plus -shardWorker, and waits for them to connect.
+   * Workers get this JVM's options and class path.
+   *
+   * @param args The command line of this process
+   * @param numShards
+   * @param workDir Where tables are exchanged, or null for a temporary directory
+   * @return
+   */
+  private static ShardedEM startShards(String[] args, int numShards, String workDir) {
+    ShardedEM shards = null;
+    try {
+      shards = new ShardedEM(numShards, workDir != null ? new File(workDir) : null);
+      List<List<String>> commands = new ArrayList<List<String>>();
+      for (int shard = 0; shard < numShards; shard++) {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(WordAlignmentTester.class.getName());
+        command.addAll(Arrays.asList(args));
+        command.add("-shardWorker");
+        command.add(String.valueOf(shard));
+        command.add("-coordinatorPort");
+        command.add(String.valueOf(shards.getPort()));
+        commands.add(command);
+      }
+      shards.start(commands);
+      return shards;
+    } catch (IOException e) {
+      if (shards != null) shards.close();
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Runs one worker of -shards: loads every numShards-th training pair,
+   * starting with pair number -shardWorker, and serves E-steps on them to
+   * the coordinator at -coordinatorPort until it is done training.
+   *
+   * @param model
+   * @param argMap
+   * @param trainingPath
+   * @param maxTrainingSentences
+   * @param numShards
+   * @param streamTraining - whether to reread the shard from disk on every pass
+   */
+  private static void runShardWorker(String model, Map<String,String> argMap, String trainingPath,
+                                     int maxTrainingSentences, int numShards, boolean streamTraining) {
+    int shard = Integer.parseInt(argMap.get("-shardWorker"));
+    int port = Integer.parseInt(argMap.get("-coordinatorPort"));
+    Vocabulary vocabulary = new Vocabulary();
+    Corpus trainingCorpus = new StreamingCorpus(getAlignedFileList(trainingPath), maxTrainingSentences,
+        new ArrayList<SentencePair>(), vocabulary, shard, numShards);
+    if (!streamTraining) {
+      List<SentencePair> trainingSentencePairs = new ArrayList<SentencePair>();
+      for (SentencePair pair : trainingCorpus) {
+        trainingSentencePairs.add(pair);
+      }
+      trainingCorpus = new ListCorpus(trainingSentencePairs);
+      // One println per line, so that the workers' lines do not interleave
+      System.out.println("Shard " + shard + " training set size: " + trainingSentencePairs.size());
+    }
+
+    WordAligner wordAligner = loadModel(model);
+    if (!(wordAligner instanceof ShardedEM.Model)) {
+      throw new RuntimeException(model + " cannot train with -shards");
+    }
+    if (wordAligner instanceof Configurable) {
+      ((Configurable) wordAligner).configure(argMap);
+    }
+    try {
+      ShardedEM.serve((ShardedEM.Model) wordAligner, trainingCorpus, port, shard);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
     }
   }
 
@@ -146,81 +344,231 @@ public final class WordAlignmentTester {
 
   /**
    * Evaluate the aligner on a gold test set using Alignment Error Rate (AER).
+   * Sentences are aligned and scored on numThreads threads, so the aligner's
+   * align() must be safe to call concurrently once it is trained.
    * 
    * @param wordAligner
    * @param testSentencePairs
    * @param testAlignments
    * @param verbose
+   * @param numThreads
+   * @return The AER
    */
-  private static void test(WordAligner wordAligner, List<SentencePair> testSentencePairs, Map<Integer, Alignment> testAlignments, boolean verbose) {
+  private static double test(final WordAligner wordAligner, final List<SentencePair> testSentencePairs,
+                           final Map<Integer, Alignment> testAlignments, final boolean verbose, int numThreads) {
+    ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+    List<AlignmentCounts> partialCounts;
+    try {
+      partialCounts = Shards.run(pool, testSentencePairs.size(), numThreads, new Shards.Task<AlignmentCounts>() {
+        public AlignmentCounts call(int shard, int start, int end) {
+          AlignmentCounts counts = new AlignmentCounts();
+          List<SentencePair> sentencePairs = testSentencePairs.subList(start, end);
+          List<Alignment> proposedAlignments = WordAligners.alignAll(wordAligner, sentencePairs);
+          for (int k = 0; k < sentencePairs.size(); k++) {
+            final SentencePair sentencePair = sentencePairs.get(k);
+            final Alignment proposedAlignment = proposedAlignments.get(k);
+            final Alignment referenceAlignment = testAlignments.get(sentencePair.getSentenceID());
+            if (referenceAlignment == null) {
+              throw new RuntimeException("No reference alignment found for sentenceID "+sentencePair.getSentenceID());
+            }
+            if (verbose) {
+              counts.renderings.add(Alignment.render(referenceAlignment,proposedAlignment,sentencePair));
+            }
+            counts.add(proposedAlignment, referenceAlignment,
+                sentencePair.getSourceWords().size(), sentencePair.getTargetWords().size());
+          }
+          return counts;
+        }
+      });
+    } finally {
+      if (pool != null) pool.shutdown();
+    }
+
     int proposedSureCount = 0;
     int proposedPossibleCount = 0;
     int sureCount = 0;
     int proposedCount = 0;
-
-    for (SentencePair sentencePair : testSentencePairs) {
-      final Alignment proposedAlignment = wordAligner.align(sentencePair);
-      final Alignment referenceAlignment = testAlignments.get(sentencePair.getSentenceID());
-      if (referenceAlignment == null) {
-        throw new RuntimeException("No reference alignment found for sentenceID "+sentencePair.getSentenceID());
-      }
-      if (verbose) {
-        System.out.println("Alignment:\n"+Alignment.render(referenceAlignment,proposedAlignment,sentencePair));
-      }
-
-      final int nSourceWords = sentencePair.getSourceWords().size();
-      final int nTargetWords = sentencePair.getTargetWords().size();
-      for (int srcIndex = 0; srcIndex < nSourceWords; srcIndex++) {
-        for (int tgtIndex = 0; tgtIndex < nTargetWords; tgtIndex++) {
-          boolean proposed = proposedAlignment.containsSureAlignment(tgtIndex, srcIndex);
-          boolean sure = referenceAlignment.containsSureAlignment(tgtIndex, srcIndex);
-          boolean possible = referenceAlignment.containsPossibleAlignment(tgtIndex, srcIndex);
-          if (proposed && sure) proposedSureCount++;
-          if (proposed && possible) proposedPossibleCount++;
-          if (proposed) proposedCount++;
-          if (sure) sureCount++;
-        }
+    for (AlignmentCounts counts : partialCounts) {
+      for (String rendering : counts.renderings) {
+        System.out.println("Alignment:\n"+rendering);
       }
+      proposedSureCount += counts.proposedSureCount;
+      proposedPossibleCount += counts.proposedPossibleCount;
+      sureCount += counts.sureCount;
+      proposedCount += counts.proposedCount;
     }
     System.out.println();
     System.out.println("### Evaluation Results ###");
     System.out.printf("%s:\t%.4f%n", "Precision", proposedPossibleCount/(double)proposedCount);
     System.out.printf("%s:\t%.4f%n", "Recall", proposedSureCount/(double)sureCount);
-    System.out.printf("%s:\t%.4f%n", "AER", (1.0-(proposedSureCount+proposedPossibleCount)/(double)(sureCount+proposedCount)));
+    double aer = 1.0-(proposedSureCount+proposedPossibleCount)/(double)(sureCount+proposedCount);
+    System.out.printf("%s:\t%.4f%n", "AER", aer);
+    return aer;
   }
 
+  /**
+   * AER statistics of one shard of the test set, and its renderings when verbose.
+   */
+  private static class AlignmentCounts {
+    int proposedSureCount;
+    int proposedPossibleCount;
+    int sureCount;
+    int proposedCount;
+    final List<String> renderings = new ArrayList<String>();
+
+    /**
+     * Adds the links of one sentence pair that fall inside its
+     * nSourceWords x nTargetWords grid, by walking the proposed and sure
+     * links rather than every cell.
+     */
+    void add(Alignment proposed, Alignment reference, int nSourceWords, int nTargetWords) {
+      for (int tgtIndex = 0; tgtIndex < nTargetWords; tgtIndex++) {
+        for (int srcIndex = proposed.nextAlignedSource(tgtIndex, 0); srcIndex >= 0 && srcIndex < nSourceWords;
+             srcIndex = proposed.nextAlignedSource(tgtIndex, srcIndex + 1)) {
+          proposedCount++;
+          if (reference.containsSureAlignment(tgtIndex, srcIndex)) proposedSureCount++;
+          if (reference.containsPossibleAlignment(tgtIndex, srcIndex)) proposedPossibleCount++;
+        }
+        for (int srcIndex = reference.nextAlignedSource(tgtIndex, 0); srcIndex >= 0 && srcIndex < nSourceWords;
+             srcIndex = reference.nextAlignedSource(tgtIndex, srcIndex + 1)) {
+          sureCount++;
+        }
+      }
+    }
+  }
 
   /**
    * Write alignments in GIZA++ format. Assumes that NULL alignments are not included in the Alignment object.
    * 
    * For more information on this format, see: http://www.statmt.org/moses/?n=FactoredTraining.AlignWords
+   *
+   * Sentences are read a batch at a time and aligned and formatted on numThreads
+   * threads, each into its own reusable buffer, while a writer thread writes out
+   * the previous batch.  Lines come out in corpus order.
    * 
    * @param wordAligner
    * @param trainingSentencePairs
    * @param outputFile
+   * @param numThreads
    */
-  private static void write(WordAligner wordAligner, List<SentencePair> trainingSentencePairs, String outputFile) {
+  private static void write(final WordAligner wordAligner, Iterable<SentencePair> trainingSentencePairs,
+                            String outputFile, final int numThreads) {
+    ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+    ExecutorService writer = Executors.newSingleThreadExecutor();
     try {
-      PrintWriter pw = new PrintWriter(new BufferedOutputStream(new FileOutputStream(outputFile)));
-      for (SentencePair sentence : trainingSentencePairs) {
-        Alignment alignment = wordAligner.align(sentence);
-        int numTargetTokens = sentence.getTargetWords().size();
-        int numSourceTokens = sentence.getSourceWords().size();
-        for (int tgtIndex = 0; tgtIndex < numTargetTokens; ++tgtIndex) {
-          Set<Integer> alignedSourceIndices = alignment.getAlignedSources(tgtIndex);
-          for (int srcIndex : alignedSourceIndices) {
-            if (srcIndex < 0 || srcIndex >= numSourceTokens) {
-              throw new RuntimeException(String.format("Source index out of bounds: idx: %d src_len: %d", srcIndex, numSourceTokens));
-            }
-            pw.printf("%d-%d ", srcIndex, tgtIndex);
+      final OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16);
+      try {
+        // Two sets of buffers: one is filled while the other is being written
+        final LineBuffer[][] buffers = new LineBuffer[2][numThreads];
+        for (int k = 0; k < numThreads; k++) {
+          buffers[0][k] = new LineBuffer();
+          buffers[1][k] = new LineBuffer();
+        }
+        // The pending write of each set of buffers, if any
+        List<Future<Void>> written = new ArrayList<Future<Void>>();
+        written.add(null);
+        written.add(null);
+        final List<SentencePair> batch = new ArrayList<SentencePair>(Shards.DEFAULT_BATCH_SIZE);
+        Iterator<SentencePair> it = trainingSentencePairs.iterator();
+        for (int batchNumber = 0; it.hasNext(); batchNumber++) {
+          final LineBuffer[] batchBuffers = buffers[batchNumber % 2];
+          if (written.get(batchNumber % 2) != null) {
+            written.get(batchNumber % 2).get();
           }
+          batch.clear();
+          while (it.hasNext() && batch.size() < Shards.DEFAULT_BATCH_SIZE) {
+            batch.add(it.next());
+          }
+          final int numShards = Shards.run(pool, batch.size(), numThreads, new Shards.Task<Void>() {
+            public Void call(int shard, int start, int end) {
+              LineBuffer buffer = batchBuffers[shard];
+              buffer.clear();
+              List<SentencePair> sentences = batch.subList(start, end);
+              List<Alignment> alignments = WordAligners.alignAll(wordAligner, sentences);
+              for (int k = 0; k < sentences.size(); k++) {
+                formatAlignment(alignments.get(k), sentences.get(k), buffer);
+              }
+              return null;
+            }
+          }).size();
+          written.set(batchNumber % 2, writer.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+              for (int shard = 0; shard < numShards; shard++) {
+                batchBuffers[shard].writeTo(out);
+              }
+              return null;
+            }
+          }));
+        }
+        for (Future<Void> future : written) {
+          if (future != null) future.get();
         }
-        pw.println();
+      } finally {
+        out.close();
       }
-      pw.close();
 
     } catch (FileNotFoundException e) {
       e.printStackTrace();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      writer.shutdown();
+      if (pool != null) pool.shutdown();
+    }
+  }
+
+  /**
+   * Appends one GIZA++ line, "src-tgt src-tgt ... \n", for the alignment.
+   */
+  private static void formatAlignment(Alignment alignment, SentencePair sentence, LineBuffer buffer) {
+    int numTargetTokens = sentence.getTargetWords().size();
+    int numSourceTokens = sentence.getSourceWords().size();
+    for (int tgtIndex = 0; tgtIndex < numTargetTokens; ++tgtIndex) {
+      for (int srcIndex = alignment.nextAlignedSource(tgtIndex, 0); srcIndex >= 0;
+           srcIndex = alignment.nextAlignedSource(tgtIndex, srcIndex + 1)) {
+        if (srcIndex >= numSourceTokens) {
+          throw new RuntimeException(String.format("Source index out of bounds: idx: %d src_len: %d", srcIndex, numSourceTokens));
+        }
+        buffer.append(srcIndex);
+        buffer.append((byte) '-');
+        buffer.append(tgtIndex);
+        buffer.append((byte) ' ');
+      }
+    }
+    buffer.append((byte) '\n');
+  }
+
+  /**
+   * A growable buffer of ASCII output bytes, reused from batch to batch.
+   */
+  private static class LineBuffer {
+    private byte[] bytes = new byte[1 << 16];
+    private int length;
+
+    void clear() {
+      length = 0;
+    }
+
+    void append(byte b) {
+      if (length == bytes.length)
+        bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+      bytes[length++] = b;
+    }
+
+    // Appends a non-negative int in decimal
+    void append(int value) {
+      if (value >= 10)
+        append(value / 10);
+      append((byte) ('0' + value % 10));
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      out.write(bytes, 0, length);
     }
   }
 
@@ -267,12 +615,13 @@ public final class WordAlignmentTester {
    * @param path
    * @param srcExtension
    * @param tgtExtension
+   * @param vocabulary
    * @return
    */
-  private static List<SentencePair> loadTestData(String path, String srcFile, String tgtFile) {
+  private static List<SentencePair> loadTestData(String path, String srcFile, String tgtFile, Vocabulary vocabulary) {
     srcFile = path + "/" + srcFile;
     tgtFile = path + "/" + tgtFile;
-    return readAlignedSentences(new Pair<String,String>(tgtFile, srcFile));
+    return readAlignedSentences(new Pair<String,String>(tgtFile, srcFile), vocabulary);
   }
 
   /**
@@ -280,20 +629,35 @@ public final class WordAlignmentTester {
    * 
    * @param path
    * @param maxSentencePairs - a list of (source,target) sentences
+   * @param vocabulary
+   * @param cacheFile - preprocessed copy of the data, used if up to date
+   * @param buildCache - whether to rebuild cacheFile if it is not
    * @return
    */
-  private static List<SentencePair> loadTrainingData(String path, int maxSentencePairs) {
-    List<SentencePair> sentencePairs = new ArrayList<SentencePair>();
+  private static List<SentencePair> loadTrainingData(String path, int maxSentencePairs, Vocabulary vocabulary,
+                                                     File cacheFile, boolean buildCache) {
     List<Pair<String,String>> baseFileNames = getAlignedFileList(path);
+    try {
+      if (buildCache && !CorpusCache.isFresh(cacheFile, baseFileNames)) {
+        System.out.println("Building corpus cache " + cacheFile);
+        CorpusCache.write(baseFileNames, cacheFile);
+      }
+      if (CorpusCache.isFresh(cacheFile, baseFileNames)) {
+        System.out.println("Reading corpus cache " + cacheFile);
+        return CorpusCache.read(cacheFile, baseFileNames, maxSentencePairs, vocabulary);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    // Only the pairs kept are read, so the vocabulary holds the same words as when
+    // the cache or a StreamingCorpus supplies them
+    List<SentencePair> sentencePairs = new ArrayList<SentencePair>();
     for (Pair<String,String> filePair: baseFileNames) {
-      List<SentencePair> fileSentences = readAlignedSentences(filePair);
-      if (sentencePairs.size() + fileSentences.size() <= maxSentencePairs) {
-        sentencePairs.addAll(fileSentences);
-      } else {
-        int maxIdx = maxSentencePairs - sentencePairs.size();
-        sentencePairs.addAll(fileSentences.subList(0, maxIdx));
+      if (sentencePairs.size() == maxSentencePairs) {
         break;
       }
+      sentencePairs.addAll(readAlignedSentences(filePair, vocabulary, maxSentencePairs - sentencePairs.size()));
     }
     return sentencePairs;
   }
@@ -305,7 +669,7 @@ public final class WordAlignmentTester {
    * @param path
    * @return
    */
-  private static List<Pair<String,String>> getAlignedFileList(String path) {
+  static List<Pair<String,String>> getAlignedFileList(String path) {
     File fileName = new File(path + "/FilePairs.training");
     if ( ! fileName.exists()) {
       throw new RuntimeException("Training file does not exist: " + fileName.getAbsolutePath());
@@ -332,19 +696,30 @@ public final class WordAlignmentTester {
   }
 
   /**
-   * Read a set of sentences from aligned files.
+   * Read a set of sentences from aligned files, assigning word IDs from the
+   * given vocabulary.
    * 
    * @param filePair
+   * @param vocabulary
    * @return
    */
-  private static List<SentencePair> readAlignedSentences(Pair<String,String> filePair) {
+  static List<SentencePair> readAlignedSentences(Pair<String,String> filePair, Vocabulary vocabulary) {
+    return readAlignedSentences(filePair, vocabulary, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Read at most maxSentencePairs sentences from aligned files.  Words of
+   * the sentences past them are not added to the vocabulary.
+   */
+  static List<SentencePair> readAlignedSentences(Pair<String,String> filePair, Vocabulary vocabulary,
+                                                 int maxSentencePairs) {
     List<SentencePair> sentencePairs = new ArrayList<SentencePair>();
     String targetFileName = filePair.getFirst();
     String sourceFileName = filePair.getSecond();
     try {
       BufferedReader brTarget = new BufferedReader(new InputStreamReader(new FileInputStream(targetFileName), "UTF-8"));
       BufferedReader brSource = new BufferedReader(new InputStreamReader(new FileInputStream(sourceFileName), "UTF-8"));
-      while (brTarget.ready() && brSource.ready()) {
+      while (sentencePairs.size() < maxSentencePairs && brTarget.ready() && brSource.ready()) {
         String englishLine = brTarget.readLine();
         String frenchLine = brSource.readLine();
         Pair<Integer,List<String>> targetSentenceAndID = tokenizeAndIntern(englishLine);
@@ -352,7 +727,7 @@ public final class WordAlignmentTester {
         if (! targetSentenceAndID.getFirst().equals(sourceSentenceAndID.getFirst())) {
           throw new RuntimeException("Sentence ID confusion in file "+targetFileName+", lines were:\n\t"+englishLine+"\n\t"+frenchLine);
         }
-        sentencePairs.add(new SentencePair(targetSentenceAndID.getFirst(), targetFileName, targetSentenceAndID.getSecond(), sourceSentenceAndID.getSecond()));
+        sentencePairs.add(new SentencePair(targetSentenceAndID.getFirst(), targetFileName, targetSentenceAndID.getSecond(), sourceSentenceAndID.getSecond(), vocabulary));
       }
       brTarget.close();
       brSource.close();
@@ -389,4 +764,110 @@ public final class WordAlignmentTester {
     return new Pair<Integer,List<String>>(id, tokenList);
   }
 
+  /**
+   * Training data read from disk on every pass, so that no more than one
+   * sentence pair need be in memory at a time.  Yields the first maxSentencePairs
+   * pairs of the training files, or the shard's share of them, then the given
+   * in-memory pairs.
+   */
+  private static class StreamingCorpus implements Corpus {
+    private final List<Pair<String,String>> filePairs;
+    private final int maxSentencePairs;
+    private final List<SentencePair> extraPairs;
+    private final Vocabulary vocabulary;
+    // Only pairs whose number is shard modulo numShards are read
+    private final int shard;
+    private final int numShards;
+
+    public StreamingCorpus(List<Pair<String,String>> filePairs, int maxSentencePairs,
+                           List<SentencePair> extraPairs, Vocabulary vocabulary) {
+      this(filePairs, maxSentencePairs, extraPairs, vocabulary, 0, 1);
+    }
+
+    public StreamingCorpus(List<Pair<String,String>> filePairs, int maxSentencePairs,
+                           List<SentencePair> extraPairs, Vocabulary vocabulary, int shard, int numShards) {
+      this.filePairs = filePairs;
+      this.maxSentencePairs = maxSentencePairs;
+      this.extraPairs = extraPairs;
+      this.vocabulary = vocabulary;
+      this.shard = shard;
+      this.numShards = numShards;
+    }
+
+    public Vocabulary getVocabulary() {
+      return vocabulary;
+    }
+
+    public Iterator<SentencePair> iterator() {
+      return new Iterator<SentencePair>() {
+        int fileIndex = 0;
+        int numRead = 0;
+        String targetFileName;
+        BufferedReader brTarget;
+        BufferedReader brSource;
+        Iterator<SentencePair> extraIterator = extraPairs.iterator();
+        SentencePair next = readNext();
+
+        public boolean hasNext() {
+          return next != null;
+        }
+
+        public SentencePair next() {
+          if (next == null)
+            throw new NoSuchElementException();
+          SentencePair pair = next;
+          next = readNext();
+          return pair;
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+
+        private SentencePair readNext() {
+          try {
+            while (numRead < maxSentencePairs) {
+              if (brTarget == null) {
+                if (fileIndex == filePairs.size())
+                  break;
+                Pair<String,String> filePair = filePairs.get(fileIndex++);
+                targetFileName = filePair.getFirst();
+                brTarget = new BufferedReader(new InputStreamReader(new FileInputStream(filePair.getFirst()), "UTF-8"));
+                brSource = new BufferedReader(new InputStreamReader(new FileInputStream(filePair.getSecond()), "UTF-8"));
+              }
+              String englishLine = brTarget.readLine();
+              String frenchLine = brSource.readLine();
+              if (englishLine == null || frenchLine == null) {
+                closeFiles();
+                continue;
+              }
+              if (numRead++ % numShards != shard) {
+                continue;
+              }
+              Pair<Integer,List<String>> targetSentenceAndID = tokenizeAndIntern(englishLine);
+              Pair<Integer,List<String>> sourceSentenceAndID = tokenizeAndIntern(frenchLine);
+              if (! targetSentenceAndID.getFirst().equals(sourceSentenceAndID.getFirst())) {
+                throw new RuntimeException("Sentence ID confusion in file "+targetFileName+", lines were:\n\t"+englishLine+"\n\t"+frenchLine);
+              }
+              return new SentencePair(targetSentenceAndID.getFirst(), targetFileName, targetSentenceAndID.getSecond(), sourceSentenceAndID.getSecond(), vocabulary);
+            }
+            closeFiles();
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+          return extraIterator.hasNext() ? extraIterator.next() : null;
+        }
+
+        private void closeFiles() throws IOException {
+          if (brTarget != null) {
+            brTarget.close();
+            brSource.close();
+            brTarget = null;
+            brSource = null;
+          }
+        }
+      };
+    }
+  }
+
 }
@@ -0,0 +1,351 @@
+package cs224n.util;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map from objects to doubles with the same interface as Counter, but
+ * stored in an open-addressing table of parallel key and double[] value
+ * arrays, so that counts are never boxed.  Objects not in the counter will
+ * return a count of zero.  Null keys are not supported.
+ *
+ * Use entryIterator() to walk the (key, count) pairs in hot loops without
+ * allocating per entry.
+ */
+public class DoubleCounter <E> implements Serializable {
+  private static final long serialVersionUID = 6413873562371306281L;
+
+  private static final int INITIAL_CAPACITY = 8;
+
+  Object[] keys;
+  double[] values;
+  int size;
+
+  /**
+   * A cursor over the entries of a DoubleCounter.  Call advance() to move to
+   * the next entry, then read it with getKey() and getValue().
+   */
+  public class EntryIterator {
+    int slot = -1;
+    int next = -1;
+
+    EntryIterator() {
+      next = nextSlot(0);
+    }
+
+    public boolean hasNext() {
+      return next < keys.length;
+    }
+
+    public void advance() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      slot = next;
+      next = nextSlot(slot + 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    public E getKey() {
+      return (E) keys[slot];
+    }
+
+    public double getValue() {
+      return values[slot];
+    }
+
+    /**
+     * Sets the count of the current entry, without changing the key set.
+     */
+    public void setValue(double count) {
+      values[slot] = count;
+    }
+  }
+
+  /**
+   * The elements in the counter.
+   *
+   * @return set of keys
+   */
+  public Set<E> keySet() {
+    return new AbstractSet<E>() {
+      public Iterator<E> iterator() {
+        return new Iterator<E>() {
+          int next = nextSlot(0);
+
+          public boolean hasNext() {
+            return next < keys.length;
+          }
+
+          @SuppressWarnings("unchecked")
+          public E next() {
+            if (!hasNext())
+              throw new NoSuchElementException();
+            E key = (E) keys[next];
+            next = nextSlot(next + 1);
+            return key;
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      public int size() {
+        return size;
+      }
+
+      public boolean contains(Object o) {
+        return o != null && find(o) >= 0;
+      }
+    };
+  }
+
+  /**
+   * A cursor over the (key, count) entries of the counter.
+   */
+  public EntryIterator entryIterator() {
+    return new EntryIterator();
+  }
+
+  /**
+   * The number of entries in the counter (not the total count -- use totalCount() instead).
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * True if there are no entries in the counter (false does not mean totalCount > 0)
+   */
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Returns whether the counter contains the given key.  Note that this is the
+   * way to distinguish keys which are in the counter with count zero, and those
+   * which are not in the counter (and will therefore return count zero from
+   * getCount().
+   *
+   * @param key
+   * @return whether the counter contains the key
+   */
+  public boolean containsKey(E key) {
+    return find(key) >= 0;
+  }
+
+  /**
+   * Get the count of the element, or zero if the element is not in the
+   * counter.
+   *
+   * @param key
+   */
+  public double getCount(E key) {
+    int slot = find(key);
+    if (slot < 0)
+      return 0;
+    return values[slot];
+  }
+
+  /**
+   * Set the count for the given key, clobbering any previous count.
+   *
+   * @param key
+   * @param count
+   */
+  public void setCount(E key, double count) {
+    int slot = ensureSlot(key);
+    values[slot] = count;
+  }
+
+  /**
+   * Increment a key's count by the given amount.
+   *
+   * @param key
+   * @param increment
+   */
+  public void incrementCount(E key, double increment) {
+    int slot = ensureSlot(key);
+    values[slot] += increment;
+  }
+
+  /**
+   * Increment each element in a given collection by a given amount.
+   */
+  public void incrementAll(Collection<? extends E> collection, double count) {
+    for (E key : collection) {
+      incrementCount(key, count);
+    }
+  }
+
+  public <T extends E> void incrementAll(DoubleCounter<T> counter) {
+    DoubleCounter<T>.EntryIterator it = counter.entryIterator();
+    while (it.hasNext()) {
+      it.advance();
+      incrementCount(it.getKey(), it.getValue());
+    }
+  }
+
+  /**
+   * Finds the total of all counts in the counter.  This implementation iterates
+   * through the entire counter every time this method is called.
+   *
+   * @return the counter's total
+   */
+  public double totalCount() {
+    double total = 0.0;
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != null)
+        total += values[slot];
+    }
+    return total;
+  }
+
+  /**
+   * Finds the key with maximum count.  This is a linear operation, and ties are broken arbitrarily.
+   *
+   * @return a key with maximum count
+   */
+  @SuppressWarnings("unchecked")
+  public E argMax() {
+    double maxCount = Double.NEGATIVE_INFINITY;
+    E maxKey = null;
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != null && (values[slot] > maxCount || maxKey == null)) {
+        maxKey = (E) keys[slot];
+        maxCount = values[slot];
+      }
+    }
+    return maxKey;
+  }
+
+  /**
+   * Returns a string representation with the keys ordered by decreasing
+   * counts.
+   *
+   * @return string representation
+   */
+  public String toString() {
+    return toString(size());
+  }
+
+  /**
+   * Returns a string representation which includes no more than the
+   * maxKeysToPrint elements with largest counts.
+   *
+   * @param maxKeysToPrint
+   * @return partial string representation
+   */
+  public String toString(int maxKeysToPrint) {
+    return asPriorityQueue().toString(maxKeysToPrint);
+  }
+
+  /**
+   * Builds a priority queue whose elements are the counter's elements, and
+   * whose priorities are those elements' counts in the counter.
+   */
+  @SuppressWarnings("unchecked")
+  public PriorityQueue<E> asPriorityQueue() {
+    PriorityQueue<E> pq = new PriorityQueue<E>(Math.max(size, 1));
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != null)
+        pq.add((E) keys[slot], values[slot]);
+    }
+    return pq;
+  }
+
+  public DoubleCounter() {
+    this(INITIAL_CAPACITY / 2);
+  }
+
+  /**
+   * Builds a counter sized to hold the given number of keys without growing.
+   */
+  public DoubleCounter(int expectedSize) {
+    int capacity = INITIAL_CAPACITY;
+    while (capacity < 2 * expectedSize)
+      capacity <<= 1;
+    keys = new Object[capacity];
+    values = new double[capacity];
+  }
+
+  // -----------------------------------------------------------------------
+
+  private static int hash(Object key) {
+    int h = key.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  int nextSlot(int slot) {
+    while (slot < keys.length && keys[slot] == null)
+      slot++;
+    return slot;
+  }
+
+  private int find(Object key) {
+    int mask = keys.length - 1;
+    for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+      Object k = keys[slot];
+      if (k == null)
+        return -1;
+      if (k == key || k.equals(key))
+        return slot;
+    }
+  }
+
+  private int ensureSlot(E key) {
+    if (key == null)
+      throw new NullPointerException("DoubleCounter does not support null keys");
+    int slot = find(key);
+    if (slot >= 0)
+      return slot;
+    // Keep the table at most half full so probe sequences stay short
+    if (2 * (size + 1) > keys.length)
+      rehash(2 * keys.length);
+    int mask = keys.length - 1;
+    slot = hash(key) & mask;
+    while (keys[slot] != null)
+      slot = (slot + 1) & mask;
+    keys[slot] = key;
+    size++;
+    return slot;
+  }
+
+  private void rehash(int newCapacity) {
+    Object[] oldKeys = keys;
+    double[] oldValues = values;
+    keys = new Object[newCapacity];
+    values = new double[newCapacity];
+    int mask = newCapacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] == null)
+        continue;
+      int slot = hash(oldKeys[i]) & mask;
+      while (keys[slot] != null)
+        slot = (slot + 1) & mask;
+      keys[slot] = oldKeys[i];
+      values[slot] = oldValues[i];
+    }
+  }
+
+  public static void main(String[] args) {
+    DoubleCounter<String> counter = new DoubleCounter<String>();
+    System.out.println(counter);
+    counter.incrementCount("planets", 7);
+    System.out.println(counter);
+    counter.incrementCount("planets", 1);
+    System.out.println(counter);
+    counter.setCount("suns", 1);
+    System.out.println(counter);
+    counter.setCount("aliens", 0);
+    System.out.println(counter);
+    System.out.println(counter.toString(2));
+    System.out.println("Total: " + counter.totalCount());
+  }
+
+}
@@ -0,0 +1,105 @@
+package cs224n.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a range of items into contiguous shards and processes them on a
+ * thread pool.  Results come back in shard order, so callers that merge
+ * them in that order get the same answer on every run with the same
+ * number of shards.
+ */
+public class Shards {
+
+  /**
+   * Number of items runBatched() reads into memory at a time.
+   */
+  public static final int DEFAULT_BATCH_SIZE = 10000;
+
+  /**
+   * Work done on the items [start, end) of one shard.
+   */
+  public interface Task<R> {
+    public R call(int shard, int start, int end);
+  }
+
+  /**
+   * Runs the task over numShards contiguous shards of [0, numItems).  With a
+   * null pool or a single shard, the work runs on the calling thread.
+   *
+   * @return the result of each shard, in shard order
+   */
+  public static <R> List<R> run(ExecutorService pool, int numItems, int numShards, final Task<R> task) {
+    numShards = Math.max(1, Math.min(numShards, numItems));
+    List<R> results = new ArrayList<R>(numShards);
+    if (pool == null || numShards == 1) {
+      for (int shard = 0; shard < numShards; shard++) {
+        results.add(task.call(shard, start(shard, numItems, numShards), start(shard + 1, numItems, numShards)));
+      }
+      return results;
+    }
+
+    List<Callable<R>> calls = new ArrayList<Callable<R>>(numShards);
+    for (int shard = 0; shard < numShards; shard++) {
+      final int s = shard;
+      final int start = start(shard, numItems, numShards);
+      final int end = start(shard + 1, numItems, numShards);
+      calls.add(new Callable<R>() {
+        public R call() {
+          return task.call(s, start, end);
+        }
+      });
+    }
+    try {
+      for (Future<R> future : pool.invokeAll(calls)) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+    return results;
+  }
+
+  /**
+   * Work done on one shard of a batch.
+   */
+  public interface BatchTask<T> {
+    public void call(int shard, List<T> items);
+  }
+
+  /**
+   * Reads items a batch at a time, so that they need not all fit in memory,
+   * and runs the task over numShards contiguous shards of each batch.  Shard
+   * k of every batch is handed to the task as shard k, so a task that keeps
+   * one accumulator per shard never shares it between threads.
+   */
+  public static <T> void runBatched(ExecutorService pool, Iterable<T> items, int batchSize, int numShards,
+                                    final BatchTask<T> task) {
+    final List<T> batch = new ArrayList<T>(batchSize);
+    Iterator<T> it = items.iterator();
+    while (it.hasNext()) {
+      batch.clear();
+      while (it.hasNext() && batch.size() < batchSize) {
+        batch.add(it.next());
+      }
+      run(pool, batch.size(), numShards, new Task<Void>() {
+        public Void call(int shard, int start, int end) {
+          task.call(shard, batch.subList(start, end));
+          return null;
+        }
+      });
+    }
+  }
+
+  private static int start(int shard, int numItems, int numShards) {
+    return (int) ((long) shard * numItems / numShards);
+  }
+}
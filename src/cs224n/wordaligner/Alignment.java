@@ -19,28 +19,172 @@ import cs224n.util.Pair;
  * 
  */
 public class Alignment {
-  private Set<Pair<Integer, Integer>> sureAlignments;
-  private Set<Pair<Integer, Integer>> possibleAlignments;
+  private PositionSet sureAlignments;
+  private PositionSet possibleAlignments;
   private double score;
+
+  /**
+   * A set of (target position, source position) pairs, stored as one bitset
+   * of source positions per target position, so that lookups, additions and
+   * iteration over a target's sources never allocate.  Pairs with a negative
+   * position (e.g. links to NULL in gold files) are kept aside in a plain set.
+   */
+  private static class PositionSet {
+    private static final long[] EMPTY_ROW = new long[0];
+
+    long[][] rows = new long[0][];
+    Set<Pair<Integer, Integer>> negative;
+    int size;
+
+    PositionSet() {
+    }
+
+    PositionSet(PositionSet other) {
+      rows = new long[other.rows.length][];
+      for (int target = 0; target < rows.length; target++) {
+        rows[target] = other.rows[target].clone();
+      }
+      if (other.negative != null) {
+        negative = new HashSet<Pair<Integer, Integer>>(other.negative);
+      }
+      size = other.size;
+    }
+
+    boolean contains(int target, int source) {
+      if (target < 0 || source < 0) {
+        return negative != null && negative.contains(new Pair<Integer, Integer>(target, source));
+      }
+      if (target >= rows.length)
+        return false;
+      long[] row = rows[target];
+      int word = source >>> 6;
+      return word < row.length && (row[word] & (1L << source)) != 0;
+    }
+
+    boolean add(int target, int source) {
+      if (target < 0 || source < 0) {
+        if (negative == null)
+          negative = new HashSet<Pair<Integer, Integer>>();
+        if (!negative.add(new Pair<Integer, Integer>(target, source)))
+          return false;
+        size++;
+        return true;
+      }
+      if (target >= rows.length) {
+        int oldLength = rows.length;
+        rows = Arrays.copyOf(rows, Math.max(target + 1, 2 * oldLength));
+        Arrays.fill(rows, oldLength, rows.length, EMPTY_ROW);
+      }
+      int word = source >>> 6;
+      if (word >= rows[target].length)
+        rows[target] = Arrays.copyOf(rows[target], word + 1);
+      long bit = 1L << source;
+      if ((rows[target][word] & bit) != 0)
+        return false;
+      rows[target][word] |= bit;
+      size++;
+      return true;
+    }
+
+    boolean remove(int target, int source) {
+      if (!contains(target, source))
+        return false;
+      if (target < 0 || source < 0) {
+        negative.remove(new Pair<Integer, Integer>(target, source));
+      } else {
+        rows[target][source >>> 6] &= ~(1L << source);
+      }
+      size--;
+      return true;
+    }
+
+    // Smallest source position >= from aligned to target, or -1 if none
+    int nextSource(int target, int from) {
+      if (target < 0 || target >= rows.length || from < 0)
+        return -1;
+      long[] row = rows[target];
+      int word = from >>> 6;
+      if (word >= row.length)
+        return -1;
+      long bits = row[word] & (-1L << from);
+      while (true) {
+        if (bits != 0)
+          return (word << 6) + Long.numberOfTrailingZeros(bits);
+        if (++word == row.length)
+          return -1;
+        bits = row[word];
+      }
+    }
+
+    Set<Pair<Integer, Integer>> toPairs() {
+      Set<Pair<Integer, Integer>> pairs = new HashSet<Pair<Integer, Integer>>();
+      for (int target = 0; target < rows.length; target++) {
+        for (int source = nextSource(target, 0); source >= 0; source = nextSource(target, source + 1)) {
+          pairs.add(new Pair<Integer, Integer>(target, source));
+        }
+      }
+      if (negative != null)
+        pairs.addAll(negative);
+      return pairs;
+    }
+  }
   
   public double getScore() { return score; }
   
   public void setScore(double score) { this.score = score; }
   
+  /**
+   * Returns a copy of the sure (target, source) pairs.
+   */
   public Set<Pair<Integer,Integer>> getSureAlignments(){
-    return sureAlignments;
+    return sureAlignments.toPairs();
   }
 
   public boolean containsSureAlignment(int targetPosition, int sourcePosition) {
-    return sureAlignments.contains(new Pair<Integer, Integer>(targetPosition, sourcePosition));
+    return sureAlignments.contains(targetPosition, sourcePosition);
   }
 
   public boolean containsPossibleAlignment(int targetPosition, int sourcePosition) {
-    return possibleAlignments.contains(new Pair<Integer, Integer>(targetPosition, sourcePosition));
+    return possibleAlignments.contains(targetPosition, sourcePosition);
+  }
+
+  /**
+   * Number of sure pairs.
+   */
+  public int sureSize() {
+    return sureAlignments.size;
+  }
+
+  /**
+   * Number of possible pairs, which include the sure ones.
+   */
+  public int possibleSize() {
+    return possibleAlignments.size;
+  }
+
+  /**
+   * An upper bound on the target positions of the sure pairs: none is at
+   * or beyond it.
+   */
+  public int targetBound() {
+    return sureAlignments.rows.length;
+  }
+
+  /**
+   * Returns the smallest source position at or after fromSource that is
+   * surely aligned to the target position, or -1 if there is none.  Loop
+   * over a target's sources without allocating with
+   * <pre>
+   *   for (int s = a.nextAlignedSource(t, 0); s >= 0; s = a.nextAlignedSource(t, s + 1))
+   * </pre>
+   * Negative positions are never returned.
+   */
+  public int nextAlignedSource(int targetPosition, int fromSource) {
+    return sureAlignments.nextSource(targetPosition, fromSource);
   }
 
   public boolean removeAlignment(int targetPosition, int sourcePosition){
-    return sureAlignments.remove(new Pair<Integer, Integer>(targetPosition, sourcePosition));
+    return sureAlignments.remove(targetPosition, sourcePosition);
   }
 
   public void addPredictedAlignment(int targetPosition, int sourcePosition) {
@@ -48,11 +192,10 @@ public class Alignment {
   }
   
   public void addGoldAlignment(int targetPosition, int sourcePosition, boolean sure) {
-    Pair<Integer, Integer> alignment = new Pair<Integer, Integer>(targetPosition, sourcePosition);
     if (sure) {
-      sureAlignments.add(alignment);
+      sureAlignments.add(targetPosition, sourcePosition);
     }
-    possibleAlignments.add(alignment);
+    possibleAlignments.add(targetPosition, sourcePosition);
   }
 
   /*** START METHODS USED BY DECODE */
@@ -70,22 +213,22 @@ public class Alignment {
     int jlength = j2-j1+1;
     int diff = jlength - ilength;
 
-    Set<Pair<Integer,Integer>> newAlignments = new HashSet<Pair<Integer,Integer>>();
+    PositionSet newAlignments = new PositionSet();
 
-    for(Pair<Integer,Integer> alignment : sureAlignments){
+    for(Pair<Integer,Integer> alignment : sureAlignments.toPairs()){
       int pos = alignment.getFirst();
 
       if(pos < i1 || pos > j2){
-        newAlignments.add(alignment);
+        newAlignments.add(pos, alignment.getSecond());
       }
       else if (pos >= i1 && pos <= i2){
-        newAlignments.add(new Pair<Integer,Integer>(pos+j2-i2, alignment.getSecond()));
+        newAlignments.add(pos+j2-i2, alignment.getSecond());
       }
       else if (pos > i2 && pos < j1){
-        newAlignments.add(new Pair<Integer,Integer>(pos+diff, alignment.getSecond()));
+        newAlignments.add(pos+diff, alignment.getSecond());
       }
       else if(pos >= j1 && pos <= j2){
-        newAlignments.add(new Pair<Integer,Integer>(pos-j1+i1, alignment.getSecond()));
+        newAlignments.add(pos-j1+i1, alignment.getSecond());
       }
       else{
         System.err.println("Error in Alignment.swap()");
@@ -99,7 +242,7 @@ public class Alignment {
 
   public String toString(){
     StringBuilder sb = new StringBuilder();
-    for(Pair<Integer,Integer> a : sureAlignments){
+    for(Pair<Integer,Integer> a : sureAlignments.toPairs()){
       //sb.append(a+"; ");
       String alignment = "(e" + a.getFirst() + ", f" + a.getSecond() + ")";
       sb.append(alignment+"; ");
@@ -110,20 +253,20 @@ public class Alignment {
 
   private void shiftAlignments(int targetPosition, boolean up, int changeto){
 
-    Set<Pair<Integer,Integer>> newAlignments = new HashSet<Pair<Integer,Integer>>();
+    PositionSet newAlignments = new PositionSet();
 
-    for(Pair<Integer,Integer> alignment : sureAlignments){
+    for(Pair<Integer,Integer> alignment : sureAlignments.toPairs()){
       int pos = alignment.getFirst();
       //System.out.println("shift: "+pos);
 
       if(pos < targetPosition){
-        newAlignments.add(alignment);
+        newAlignments.add(pos, alignment.getSecond());
       }
       else if(pos == targetPosition){
-        newAlignments.add( new Pair<Integer,Integer>( (up ? pos+1 : changeto) , alignment.getSecond()) );
+        newAlignments.add( (up ? pos+1 : changeto) , alignment.getSecond() );
       }
       else if(pos > targetPosition){
-        newAlignments.add(new Pair<Integer,Integer>( (up ? pos+1 : pos-1), alignment.getSecond()) );
+        newAlignments.add( (up ? pos+1 : pos-1), alignment.getSecond() );
       }
     }
 
@@ -131,7 +274,7 @@ public class Alignment {
   }
 
   public int getAlignedTarget(int sourcePosition){
-    for(Pair<Integer,Integer> alignment : sureAlignments){
+    for(Pair<Integer,Integer> alignment : sureAlignments.toPairs()){
       if(alignment.getSecond() == sourcePosition){
         return alignment.getFirst();
       }
@@ -142,9 +285,13 @@ public class Alignment {
 
   public Set<Integer> getAlignedSources(int targetPosition){
     Set<Integer> sources = new HashSet<Integer>();
-    for(Pair<Integer,Integer> alignment : sureAlignments){
-      if(alignment.getFirst() == targetPosition){
-        sources.add(alignment.getSecond());
+    for (int source = nextAlignedSource(targetPosition, 0); source >= 0; source = nextAlignedSource(targetPosition, source + 1)) {
+      sources.add(source);
+    }
+    if (sureAlignments.negative != null) {
+      for (Pair<Integer,Integer> alignment : sureAlignments.negative) {
+        if (alignment.getFirst() == targetPosition)
+          sources.add(alignment.getSecond());
       }
     }
     return sources;
@@ -152,13 +299,13 @@ public class Alignment {
   /* END METHODS USED BY DECODER ***/
 
   public Alignment(Alignment a){
-    sureAlignments = new HashSet<Pair<Integer,Integer>>(a.sureAlignments);
-    possibleAlignments = new HashSet<Pair<Integer,Integer>>(a.possibleAlignments);
+    sureAlignments = new PositionSet(a.sureAlignments);
+    possibleAlignments = new PositionSet(a.possibleAlignments);
   }
 
   public Alignment() {
-    sureAlignments = new HashSet<Pair<Integer, Integer>>();
-    possibleAlignments = new HashSet<Pair<Integer, Integer>>();
+    sureAlignments = new PositionSet();
+    possibleAlignments = new PositionSet();
   }
 
   public static String render(Alignment alignment, SentencePair sentencePair) {
@@ -40,6 +40,10 @@ public class BaselineWordAligner implements WordAligner {
   }
 
   public void train(List<SentencePair> trainingPairs) {
+    train(new ListCorpus(trainingPairs));
+  }
+
+  public void train(Corpus trainingPairs) {
     sourceTargetCounts = new CounterMap<String,String>();
     for(SentencePair pair : trainingPairs){
       List<String> targetWords = pair.getTargetWords();
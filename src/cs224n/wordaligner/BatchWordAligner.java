@@ -0,0 +1,20 @@
+package cs224n.wordaligner;
+
+import java.util.List;
+
+/**
+ * Implemented by aligners that can align many sentence pairs faster than
+ * one align() call at a time, e.g. by sharing work between pairs of the
+ * same lengths.  Call WordAligners.alignAll() rather than this directly,
+ * so that plain WordAligners work too.
+ */
+public interface BatchWordAligner extends WordAligner {
+
+  /**
+   * Computes the same alignments as calling align() on each pair.
+   *
+   * @param sentencePairs The sentence pairs to align.
+   * @return The alignment of each pair, in input order.
+   */
+  public List<Alignment> alignAll(List<SentencePair> sentencePairs);
+}
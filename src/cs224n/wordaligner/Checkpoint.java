@@ -0,0 +1,192 @@
+package cs224n.wordaligner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The state of an EM run after some number of iterations: the iteration to
+ * run next, the last log likelihood, and the model tables.  A checkpoint
+ * file is written to a temporary file and renamed into place, so a crash
+ * leaves either the old checkpoint or the new one, never half of one.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   int    MAGIC
+ *   int    VERSION
+ *   int    next iteration
+ *   double log likelihood
+ *   long   offset of the distortion table, or -1 if there is none
+ *          the translation table, as written by TranslationTableFile
+ *          the distortion table, as written by DistortionTable.write()
+ * </pre>
+ */
+public class Checkpoint {
+
+  public static final int MAGIC = 0x49424d4b; // "IBMK"
+  public static final int VERSION = 1;
+
+  // Size of the fixed header, where the translation table starts
+  private static final int HEADER_BYTES = 28;
+
+  public final int iteration;
+  public final double logLikelihood;
+  public final TranslationTable translations;
+  public final DistortionTable distortions;
+
+  public Checkpoint(int iteration, double logLikelihood, TranslationTable translations,
+                    DistortionTable distortions) {
+    this.iteration = iteration;
+    this.logLikelihood = logLikelihood;
+    this.translations = translations;
+    this.distortions = distortions;
+  }
+
+  /**
+   * Atomically replaces the checkpoint file.  The distortion table may be null.
+   */
+  public static void write(File file, int iteration, double logLikelihood, TranslationTable translations,
+                           Vocabulary vocabulary, DistortionTable distortions) throws IOException {
+    File tmpFile = new File(file.getPath() + ".tmp");
+    FileOutputStream fileOut = new FileOutputStream(tmpFile);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+    long distortionOffset = -1;
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(iteration);
+      out.writeDouble(logLikelihood);
+      out.writeLong(distortionOffset); // patched below
+      TranslationTableFile.write(translations, vocabulary, out);
+      if (distortions != null) {
+        out.flush();
+        distortionOffset = fileOut.getChannel().position();
+        distortions.write(out);
+      }
+      out.flush();
+      fileOut.getFD().sync();
+    } finally {
+      out.close();
+    }
+
+    if (distortionOffset >= 0) {
+      RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+      try {
+        raf.seek(HEADER_BYTES - 8);
+        raf.writeLong(distortionOffset);
+        raf.getFD().sync();
+      } finally {
+        raf.close();
+      }
+    }
+    Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Loads a checkpoint, mapping its words to IDs of the given vocabulary.
+   */
+  public static Checkpoint read(File file, Vocabulary vocabulary) throws IOException {
+    int iteration;
+    double logLikelihood;
+    long distortionOffset;
+    TranslationTable translations;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.length() < HEADER_BYTES || raf.readInt() != MAGIC) {
+        throw new IOException("Not a checkpoint file: " + file);
+      }
+      int version = raf.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported checkpoint version " + version + " in " + file);
+      }
+      iteration = raf.readInt();
+      logLikelihood = raf.readDouble();
+      distortionOffset = raf.readLong();
+      translations = TranslationTableFile.read(raf.getChannel(), HEADER_BYTES, vocabulary, file.toString());
+    } finally {
+      raf.close();
+    }
+
+    DistortionTable distortions = null;
+    if (distortionOffset >= 0) {
+      FileInputStream fileIn = new FileInputStream(file);
+      try {
+        fileIn.getChannel().position(distortionOffset);
+        distortions = DistortionTable.read(new DataInputStream(new BufferedInputStream(fileIn, 1 << 16)));
+      } finally {
+        fileIn.close();
+      }
+    }
+    return new Checkpoint(iteration, logLikelihood, translations, distortions);
+  }
+
+  /**
+   * Writes checkpoints on a background thread, so that training can go on
+   * while the previous one is written.  At most one write is in flight.
+   */
+  public static class Writer {
+    private final File file;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private Future<?> pending;
+
+    public Writer(File file) {
+      this.file = file;
+    }
+
+    /**
+     * Snapshots the tables and writes them in the background.  The
+     * distortion table may be null.
+     */
+    public void save(final int iteration, final double logLikelihood, TranslationTable translations,
+                     final Vocabulary vocabulary, DistortionTable distortions) {
+      waitForPending();
+      final TranslationTable translationsCopy = translations.copy();
+      final DistortionTable distortionsCopy = distortions == null ? null : distortions.copy();
+      pending = executor.submit(new Runnable() {
+        public void run() {
+          try {
+            write(file, iteration, logLikelihood, translationsCopy, vocabulary, distortionsCopy);
+            System.out.println("Wrote checkpoint " + file + " before iteration " + iteration);
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      });
+    }
+
+    /**
+     * Waits for the last write and stops the background thread.
+     */
+    public void close() {
+      waitForPending();
+      executor.shutdown();
+    }
+
+    private void waitForPending() {
+      if (pending == null)
+        return;
+      try {
+        pending.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+      pending = null;
+    }
+  }
+}
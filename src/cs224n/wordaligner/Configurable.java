@@ -0,0 +1,19 @@
+package cs224n.wordaligner;
+
+import java.util.Map;
+
+/**
+ * Implemented by aligners that take options from the command line.
+ * WordAlignmentTester passes its parsed arguments to configure() before
+ * calling train().
+ */
+public interface Configurable {
+
+  /**
+   * Read model options.
+   *
+   * @param options Command line flags as parsed by CommandLineUtils, e.g.
+   *                "-threads" mapped to "8".
+   */
+  public void configure(Map<String, String> options);
+}
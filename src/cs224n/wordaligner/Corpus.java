@@ -0,0 +1,18 @@
+package cs224n.wordaligner;
+
+/**
+ * A collection of sentence pairs that can be iterated over any number of
+ * times, e.g. once per EM iteration.  Implementations may stream the pairs
+ * from disk on every pass instead of holding them in memory, so models
+ * should not keep references to the pairs they are given.
+ *
+ * @see ListCorpus
+ */
+public interface Corpus extends Iterable<SentencePair> {
+
+  /**
+   * The vocabulary that the pairs' word IDs refer to.  A streaming corpus
+   * may add words to it during the first pass.
+   */
+  public Vocabulary getVocabulary();
+}
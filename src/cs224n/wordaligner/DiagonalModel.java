@@ -0,0 +1,468 @@
+package cs224n.wordaligner;
+
+import cs224n.util.Shards;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Reparameterized IBM Model 2 (Dyer, Chahuneau and Smith, 2013):
+ * IBM 2 with the free distortion table q(j | i, n, m) replaced by a prior
+ * that favors the diagonal of the alignment grid,
+ *
+ *   delta(NULL | i, n, m) = p0
+ *   delta(j | i, n, m) = (1 - p0) exp(-tension |i/m - j/n|) / Z(i, n, m)
+ *
+ * with 1-based positions.  Z has a closed form, since the unnormalized
+ * prior falls off geometrically on either side of the diagonal, so the
+ * E-step costs O(n m) like IBM 1's and needs no distortion lookups.  With
+ * -optimizeTension the tension is re-estimated after each M-step to its
+ * maximum likelihood value; on the Hansards that prior is sharper than the
+ * fixed default and gives a worse AER, so it is off by default.
+ *
+ * The translation table starts from IBM1Model's, if it has been trained,
+ * and from uniform otherwise.
+ *
+ * IMPORTANT: Make sure that you read the comments in the
+ * cs224n.wordaligner.WordAligner interface.
+ */
+public class DiagonalModel implements WordAligner, Configurable {
+  public static final double INCREASE_RATIO = 1.0005;
+
+  public static final int MAX_ATTEMPTS = 100;
+
+  // The tension is kept within these bounds
+  public static final double MIN_TENSION = 0.1;
+  public static final double MAX_TENSION = 14;
+  // Step for the finite differences and convergence test of the tension update
+  private static final double TENSION_EPSILON = 1e-4;
+
+  private static final long serialVersionUID = 1315751943476440515L;
+
+  // Indexed by Vocabulary IDs; source ID Vocabulary.NULL_ID is the NULL word.
+  private TranslationTable probTgivenS;
+  private Vocabulary vocabulary;
+
+  // How sharply the prior favors the diagonal (-diagonalTension). Re-estimated after
+  // every M-step if -optimizeTension is given.
+  private double tension = 2.0;
+  private boolean optimizeTension = false;
+  // Prior probability of aligning a target word to NULL (-nullProb)
+  private double nullProb = 0.2;
+
+  // The E-step is split across this many worker threads (-threads)
+  private int numThreads = 1;
+  // IBM1Model's trained table is read from here (-ibm1File)
+  private String ibm1File = IBM1Model.MODEL_FILE;
+  // Per-iteration timings and sizes go to metricsFile (-metricsFile), see TrainingMetrics
+  private String metricsFile;
+  private transient ForkJoinPool pool;
+  private transient TrainingMetrics metrics;
+
+  // Number of training pairs with each (m, n), for re-estimating the tension
+  private int[] bucketTargetLengths = new int[0];
+  private int[] bucketSourceLengths = new int[0];
+  private int[] bucketCounts = new int[0];
+
+  public DiagonalModel() {
+    probTgivenS = new TranslationTable(1);
+  }
+
+  public void configure(Map<String, String> options) {
+    if (options.containsKey("-threads")) {
+      numThreads = Math.max(1, Integer.parseInt(options.get("-threads")));
+    }
+    if (options.containsKey("-ibm1File")) {
+      ibm1File = options.get("-ibm1File");
+    }
+    if (options.containsKey("-diagonalTension")) {
+      tension = clampTension(Double.parseDouble(options.get("-diagonalTension")));
+    }
+    if (options.containsKey("-optimizeTension")) {
+      optimizeTension = true;
+    }
+    if (options.containsKey("-fixedTension")) {
+      optimizeTension = false;
+    }
+    if (options.containsKey("-nullProb")) {
+      nullProb = Double.parseDouble(options.get("-nullProb"));
+    }
+    if (options.containsKey("-metricsFile")) {
+      metricsFile = options.get("-metricsFile");
+    }
+  }
+
+  public Alignment align(SentencePair sentencePair) {
+    Alignment alignment = new Alignment();
+    int[] targetIds = sentencePair.getTargetIds();
+    int[] sourceIds = sentencePair.getSourceIds();
+    int m = targetIds.length;
+    int n = sourceIds.length;
+    double[] prior = new double[n];
+
+    for (int i = 0; i < m; i++) {
+      int t = targetIds[i];
+      double z = fillPrior(i + 1, m, n, tension, prior) / (1 - nullProb);
+      int bestJ = -1; // NULL
+      double bestProb = nullProb * probTgivenS.get(Vocabulary.NULL_ID, t);
+      for (int j = 0; j < n; j++) {
+        double prob = prior[j] / z * probTgivenS.get(sourceIds[j], t);
+        if (prob > bestProb) {
+          bestJ = j;
+          bestProb = prob;
+        }
+      }
+      if (bestJ != -1) {
+        alignment.addPredictedAlignment(i, bestJ);
+      }
+    }
+    return alignment;
+  }
+
+  void initialize(Corpus trainingPairs) {
+    vocabulary = trainingPairs.getVocabulary();
+
+    // Count the pairs of each shape first, which also completes a streaming
+    // corpus's vocabulary before the IBM1 table is mapped onto it
+    Map<Long, Integer> lengthCounts = new TreeMap<Long, Integer>();
+    for (SentencePair pair : trainingPairs) {
+      long key = ((long) pair.getTargetIds().length << 32) | pair.getSourceIds().length;
+      Integer count = lengthCounts.get(key);
+      lengthCounts.put(key, count == null ? 1 : count + 1);
+    }
+    bucketTargetLengths = new int[lengthCounts.size()];
+    bucketSourceLengths = new int[lengthCounts.size()];
+    bucketCounts = new int[lengthCounts.size()];
+    int b = 0;
+    for (Map.Entry<Long, Integer> entry : lengthCounts.entrySet()) {
+      bucketTargetLengths[b] = (int) (entry.getKey() >>> 32);
+      bucketSourceLengths[b] = (int) (long) entry.getKey();
+      bucketCounts[b] = entry.getValue();
+      b++;
+    }
+
+    boolean uniform = true;
+    probTgivenS = new TranslationTable(vocabulary.sourceSize());
+    if (new File(ibm1File).exists()) {
+      try {
+        probTgivenS = TranslationTableFile.read(new File(ibm1File), vocabulary);
+        uniform = false;
+        System.out.println("Starting from " + ibm1File);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    // Give every co-occurring pair an entry, so the E-step can find a slot for it.
+    // Without an IBM1 model, every entry starts at 1 / (number of target words), as
+    // IBM1Model does.
+    double uniformProb = 1.0 / Math.max(1, vocabulary.targetSize());
+    for (SentencePair pair : trainingPairs) {
+      for (int target : pair.getTargetIds()) {
+        for (int source : pair.getSourceIds()) {
+          probTgivenS.increment(source, target, 0);
+          if (uniform)
+            probTgivenS.set(source, target, uniformProb);
+        }
+        probTgivenS.increment(Vocabulary.NULL_ID, target, 0);
+        if (uniform)
+          probTgivenS.set(Vocabulary.NULL_ID, target, uniformProb);
+      }
+    }
+  }
+
+  public void train(List<SentencePair> trainingPairs) {
+    train(new ListCorpus(trainingPairs));
+  }
+
+  public void train(Corpus trainingPairs) {
+    initialize(trainingPairs);
+    if (probTgivenS.size() == 0) {
+      return;
+    }
+    if (numThreads > 1) {
+      pool = new ForkJoinPool(numThreads);
+    }
+
+    int attempts = 0;
+    double oldLLH = Double.NEGATIVE_INFINITY;
+    metrics = new TrainingMetrics("DiagonalModel", metricsFile);
+    try {
+      while (attempts < MAX_ATTEMPTS) {
+        double newLLH = subtrain(trainingPairs, attempts);
+
+        System.out.println("Attempt #: " + attempts + " LLH: " + newLLH + " tension: " + tension);
+        System.out.flush();
+
+        // The first likelihood has nothing to compare against yet.
+        // Note that oldLLH < 0, so our INCREASE_RATIO just needs to make newLLH less negative.
+        if (attempts == 0) {
+          oldLLH = newLLH;
+        } else if (newLLH > oldLLH / INCREASE_RATIO) {
+          oldLLH = newLLH;
+        } else {
+          break;
+        }
+        ++attempts;
+      }
+    } finally {
+      metrics.close();
+      if (pool != null) {
+        pool.shutdown();
+        pool = null;
+      }
+    }
+  }
+
+  // Performs 1 iteration of EM, then re-estimates the tension
+  // Returns the log likelihood of the training set under the parameters the iteration started with
+  private double subtrain(Corpus trainingPairs, int attempts) {
+    metrics.startIteration();
+    // Each worker fills its own expected counts from the same contiguous shard of every
+    // batch of the corpus. The workers' counts are summed in order, so runs with the same
+    // thread count give the same model.
+    final List<ExpectedCounts> partialCounts = new ArrayList<ExpectedCounts>(numThreads);
+    for (int k = 0; k < numThreads; k++) {
+      partialCounts.add(new ExpectedCounts(probTgivenS.newAccumulator()));
+    }
+    Shards.runBatched(pool, trainingPairs, Shards.DEFAULT_BATCH_SIZE, numThreads,
+        new Shards.BatchTask<SentencePair>() {
+      public void call(int shard, List<SentencePair> pairs) {
+        accumulateCounts(pairs, partialCounts.get(shard));
+      }
+    });
+    ExpectedCounts counts = partialCounts.get(0);
+    for (int k = 1; k < partialCounts.size(); k++) {
+      counts.add(partialCounts.get(k));
+    }
+    metrics.endEStep(counts.numPairs, counts.numTokens);
+
+    double maxChange = 0;
+    for (int source = 0; source < probTgivenS.numSources(); source++) {
+      double sum = 0;
+      for (int slot = 0; slot < probTgivenS.capacity(source); slot++) {
+        sum += counts.stAlignmentCounts[source][slot];
+      }
+      if (sum == 0)
+        continue;
+      for (int slot = 0; slot < probTgivenS.capacity(source); slot++) {
+        if (probTgivenS.targetAt(source, slot) < 0)
+          continue;
+        double newProb = counts.stAlignmentCounts[source][slot] / sum;
+        maxChange = Math.max(maxChange, Math.abs(probTgivenS.valueAt(source, slot) - newProb));
+        probTgivenS.setValueAt(source, slot, newProb);
+      }
+    }
+
+    if (optimizeTension && counts.alignedMass > 0) {
+      updateTension(counts.diagonalFeature / counts.alignedMass, counts.numTargetTokens);
+    }
+    System.out.println("Attempt #" + attempts + " Max change: " + maxChange);
+    metrics.endIteration(attempts, counts.logLikelihood, probTgivenS.size(), 0);
+    return counts.logLikelihood;
+  }
+
+  // Moves the tension so that the prior's expected feature -|i/m - j/n| per target word
+  // not aligned to NULL matches the posterior's. That expectation is d log Z / d tension
+  // and grows monotonically with the tension, so Newton's method on it converges in a few
+  // steps; its derivative, the prior's variance of the feature, is taken by central
+  // differences of computeDLogZ.
+  private void updateTension(double empiricalFeature, long numTargetTokens) {
+    for (int step = 0; step < 20; step++) {
+      double modelFeature = expectedFeature(tension, numTargetTokens);
+      double variance = (expectedFeature(tension + TENSION_EPSILON, numTargetTokens)
+          - expectedFeature(tension - TENSION_EPSILON, numTargetTokens)) / (2 * TENSION_EPSILON);
+      if (variance <= 0)
+        break;
+      double newTension = clampTension(tension + (empiricalFeature - modelFeature) / variance);
+      double change = Math.abs(newTension - tension);
+      tension = newTension;
+      if (change < TENSION_EPSILON)
+        break;
+    }
+  }
+
+  // The prior's expected feature per target word over the training pairs
+  private double expectedFeature(double tension, long numTargetTokens) {
+    double modelFeature = 0;
+    for (int b = 0; b < bucketCounts.length; b++) {
+      int m = bucketTargetLengths[b];
+      int n = bucketSourceLengths[b];
+      if (n == 0)
+        continue;
+      double feature = 0;
+      for (int i = 1; i <= m; i++) {
+        feature += computeDLogZ(i, m, n, tension);
+      }
+      modelFeature += bucketCounts[b] * feature;
+    }
+    return modelFeature / numTargetTokens;
+  }
+
+  // Expected counts and statistics collected by one E-step worker
+  private static class ExpectedCounts {
+    // Laid out slot-for-slot like probTgivenS
+    final double[][] stAlignmentCounts;
+    double logLikelihood;
+    // Sums over target words of the posterior expectation of -|i/m - j/n|, and of the
+    // posterior probability of not aligning to NULL
+    double diagonalFeature;
+    double alignedMass;
+    long numTargetTokens;
+    int numPairs;
+    long numTokens;
+
+    ExpectedCounts(double[][] stAlignmentCounts) {
+      this.stAlignmentCounts = stAlignmentCounts;
+    }
+
+    void add(ExpectedCounts other) {
+      TranslationTable.addCounts(stAlignmentCounts, other.stAlignmentCounts);
+      logLikelihood += other.logLikelihood;
+      diagonalFeature += other.diagonalFeature;
+      alignedMass += other.alignedMass;
+      numTargetTokens += other.numTargetTokens;
+      numPairs += other.numPairs;
+      numTokens += other.numTokens;
+    }
+  }
+
+  // E-step: adds the expected alignment counts of the given pairs, their expected
+  // diagonal feature, and their log likelihood under the current parameters
+  private void accumulateCounts(List<SentencePair> trainingPairs, ExpectedCounts counts) {
+    double[][] stAlignmentCounts = counts.stAlignmentCounts;
+    double llh = 0;
+    double diagonalFeature = 0;
+    double alignedMass = 0;
+    long numTargetTokens = 0;
+    long tokens = 0;
+    int[] slots = new int[0];
+    double[] probs = new double[0];
+
+    for (SentencePair pair : trainingPairs) {
+      int[] targetIds = pair.getTargetIds();
+      int[] sourceIds = pair.getSourceIds();
+      int m = targetIds.length;
+      int n = sourceIds.length;
+      tokens += m + n;
+      numTargetTokens += m;
+      if (slots.length < n) {
+        slots = new int[n];
+        probs = new double[n];
+      }
+
+      for (int i = 0; i < m; i++) {
+        int t = targetIds[i];
+        // probs[j] is the prior times P(t | s_j), and sum also includes NULL's
+        double z = fillPrior(i + 1, m, n, tension, probs) / (1 - nullProb);
+        int nullSlot = probTgivenS.find(Vocabulary.NULL_ID, t);
+        double nullProbT = nullProb * probTgivenS.valueAt(Vocabulary.NULL_ID, nullSlot);
+        double sum = nullProbT;
+        for (int j = 0; j < n; j++) {
+          slots[j] = probTgivenS.find(sourceIds[j], t);
+          probs[j] *= probTgivenS.valueAt(sourceIds[j], slots[j]) / z;
+          sum += probs[j];
+        }
+        if (sum <= 0)
+          continue;
+
+        for (int j = 0; j < n; j++) {
+          double posterior = probs[j] / sum;
+          stAlignmentCounts[sourceIds[j]][slots[j]] += posterior;
+          diagonalFeature += posterior * feature(i + 1, j + 1, m, n);
+        }
+        stAlignmentCounts[Vocabulary.NULL_ID][nullSlot] += nullProbT / sum;
+        alignedMass += 1 - nullProbT / sum;
+
+        llh += Math.log(sum);
+      }
+    }
+    counts.logLikelihood += llh;
+    counts.diagonalFeature += diagonalFeature;
+    counts.alignedMass += alignedMass;
+    counts.numTargetTokens += numTargetTokens;
+    counts.numPairs += trainingPairs.size();
+    counts.numTokens += tokens;
+  }
+
+  private static double clampTension(double tension) {
+    return Math.min(MAX_TENSION, Math.max(MIN_TENSION, tension));
+  }
+
+  // -|i/m - j/n| for 1-based target position i and source position j
+  static double feature(int i, int j, int m, int n) {
+    return -Math.abs((double) j / n - (double) i / m);
+  }
+
+  /**
+   * Fills prior[0 .. n-1] with the unnormalized diagonal prior
+   * exp(tension * feature(i, j, m, n)) of each source position j + 1, and
+   * returns its normalizer.  Going away from the diagonal each term is the
+   * last one times exp(-tension / n), so only two exps are needed.
+   */
+  static double fillPrior(int i, int m, int n, double tension, double[] prior) {
+    if (n == 0)
+      return 1;
+    int floor = (int) ((double) i * n / m);
+    double ratio = Math.exp(-tension / n);
+    if (floor < n) {
+      prior[floor] = Math.exp(tension * feature(i, floor + 1, m, n));
+      for (int j = floor + 1; j < n; j++)
+        prior[j] = prior[j - 1] * ratio;
+    }
+    if (floor > 0) {
+      prior[floor - 1] = Math.exp(tension * feature(i, floor, m, n));
+      for (int j = floor - 2; j >= 0; j--)
+        prior[j] = prior[j + 1] * ratio;
+    }
+    return computeZ(i, m, n, tension);
+  }
+
+  /**
+   * Sum over source positions j = 1 .. n of exp(tension * feature(i, j, m, n)),
+   * as two geometric series meeting at the diagonal.
+   */
+  static double computeZ(int i, int m, int n, double tension) {
+    int floor = (int) ((double) i * n / m);
+    double ratio = Math.exp(-tension / n);
+    double z = 0;
+    if (floor < n)
+      z += Math.exp(tension * feature(i, floor + 1, m, n)) * (1 - Math.pow(ratio, n - floor)) / (1 - ratio);
+    if (floor > 0)
+      z += Math.exp(tension * feature(i, floor, m, n)) * (1 - Math.pow(ratio, floor)) / (1 - ratio);
+    return z;
+  }
+
+  /**
+   * Derivative of log Z with respect to the tension, i.e. the prior's
+   * expected feature at target position i, from the same two series.
+   */
+  static double computeDLogZ(int i, int m, int n, double tension) {
+    int floor = (int) ((double) i * n / m);
+    double ratio = Math.exp(-tension / n);
+    double sum = 0;
+    if (floor < n) {
+      double a = feature(i, floor + 1, m, n);
+      sum += arithmeticoGeometricSum(a, Math.exp(tension * a), ratio, -1.0 / n, n - floor);
+    }
+    if (floor > 0) {
+      double a = feature(i, floor, m, n);
+      sum += arithmeticoGeometricSum(a, Math.exp(tension * a), ratio, -1.0 / n, floor);
+    }
+    return sum / computeZ(i, m, n, tension);
+  }
+
+  // Sum over k = 0 .. count-1 of (a + k d) g r^k
+  private static double arithmeticoGeometricSum(double a, double g, double r, double d, int count) {
+    double rn = Math.pow(r, count);
+    double geometric = (1 - rn) / (1 - r);
+    // sum of k r^k
+    double weighted = r * (1 - count * Math.pow(r, count - 1) + (count - 1) * rn) / ((1 - r) * (1 - r));
+    return g * (a * geometric + d * weighted);
+  }
+}
@@ -0,0 +1,272 @@
+package cs224n.wordaligner;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Dense table of IBM2 distortion parameters q(j | i, n, m), where j is a
+ * source position (j == n meaning NULL), i a target position, n the source
+ * length and m the target length.
+ *
+ * Every (n, m) length bucket owns one contiguous block of m * (n + 1)
+ * doubles in a single flat array, one row of n + 1 cells per target
+ * position.  Callers look up a bucket's base offset once per sentence and
+ * then address cells with index(), so reads and updates never allocate.
+ * newAccumulator() returns count arrays with the same layout.
+ *
+ * A single-precision table stores its cells as floats; accumulators are
+ * double either way.
+ */
+public class DistortionTable implements Serializable {
+  private static final long serialVersionUID = 5237419823472218374L;
+
+  // offsets[n][m] is the base of bucket (n, m), or -1 if it has none
+  private int[][] offsets;
+  // Exactly one of these holds the cells
+  private double[] values;
+  private float[] floatValues;
+  private int size;
+
+  public DistortionTable() {
+    this(false);
+  }
+
+  public DistortionTable(boolean singlePrecision) {
+    offsets = new int[0][];
+    if (singlePrecision)
+      floatValues = new float[1024];
+    else
+      values = new double[1024];
+  }
+
+  public boolean isSinglePrecision() {
+    return floatValues != null;
+  }
+
+  /**
+   * Returns a deep copy of the table, with the same layout.
+   */
+  public DistortionTable copy() {
+    DistortionTable copy = new DistortionTable(isSinglePrecision());
+    copyLayout(copy);
+    if (floatValues != null)
+      copy.floatValues = Arrays.copyOf(floatValues, size);
+    else
+      copy.values = Arrays.copyOf(values, size);
+    return copy;
+  }
+
+  /**
+   * Returns a single-precision copy of the table, with the same layout, or
+   * the table itself if it already is one.
+   */
+  public DistortionTable withSinglePrecision() {
+    if (floatValues != null)
+      return this;
+    DistortionTable copy = new DistortionTable(true);
+    copyLayout(copy);
+    copy.floatValues = new float[size];
+    for (int index = 0; index < size; index++)
+      copy.floatValues[index] = (float) values[index];
+    return copy;
+  }
+
+  private void copyLayout(DistortionTable copy) {
+    copy.offsets = new int[offsets.length][];
+    for (int n = 0; n < offsets.length; n++)
+      copy.offsets[n] = offsets[n].clone();
+    copy.size = size;
+  }
+
+  /**
+   * Writes every bucket as (n, m, m * (n + 1) values), preceded by the
+   * number of buckets.
+   */
+  public void write(DataOutput out) throws IOException {
+    int numBuckets = 0;
+    for (int n = 0; n < offsets.length; n++) {
+      for (int m = 0; m < offsets[n].length; m++) {
+        if (offsets[n][m] >= 0)
+          numBuckets++;
+      }
+    }
+    out.writeInt(numBuckets);
+    for (int n = 0; n < offsets.length; n++) {
+      for (int m = 0; m < offsets[n].length; m++) {
+        int base = offsets[n][m];
+        if (base < 0)
+          continue;
+        out.writeInt(n);
+        out.writeInt(m);
+        for (int index = base; index < base + m * (n + 1); index++)
+          out.writeDouble(get(index));
+      }
+    }
+  }
+
+  /**
+   * Reads a table written by write().
+   */
+  public static DistortionTable read(DataInput in) throws IOException {
+    DistortionTable table = new DistortionTable();
+    int numBuckets = in.readInt();
+    for (int k = 0; k < numBuckets; k++) {
+      int n = in.readInt();
+      int m = in.readInt();
+      int base = table.addBucket(n, m);
+      for (int index = base; index < base + m * (n + 1); index++)
+        table.set(index, in.readDouble());
+    }
+    return table;
+  }
+
+  /**
+   * Number of cells in the table.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Largest source length with a bucket, plus one.
+   */
+  public int sourceLengthBound() {
+    return offsets.length;
+  }
+
+  /**
+   * Largest target length with a bucket for source length n, plus one.
+   */
+  public int targetLengthBound(int n) {
+    return n < offsets.length ? offsets[n].length : 0;
+  }
+
+  /**
+   * Returns the base offset of bucket (n, m), or -1 if it has none.
+   */
+  public int base(int n, int m) {
+    if (n >= offsets.length || m >= offsets[n].length)
+      return -1;
+    return offsets[n][m];
+  }
+
+  /**
+   * Returns the base offset of bucket (n, m), allocating it with all cells
+   * zero if needed.  Adding a bucket invalidates earlier accumulators.
+   */
+  public int addBucket(int n, int m) {
+    int base = base(n, m);
+    if (base >= 0)
+      return base;
+    if (n >= offsets.length) {
+      int oldLength = offsets.length;
+      offsets = Arrays.copyOf(offsets, n + 1);
+      for (int k = oldLength; k <= n; k++)
+        offsets[k] = new int[0];
+    }
+    if (m >= offsets[n].length) {
+      int oldLength = offsets[n].length;
+      offsets[n] = Arrays.copyOf(offsets[n], m + 1);
+      Arrays.fill(offsets[n], oldLength, m + 1, -1);
+    }
+    int cells = m * (n + 1);
+    if (floatValues != null) {
+      if (size + cells > floatValues.length)
+        floatValues = Arrays.copyOf(floatValues, Math.max(size + cells, 2 * floatValues.length));
+    } else if (size + cells > values.length) {
+      values = Arrays.copyOf(values, Math.max(size + cells, 2 * values.length));
+    }
+    base = size;
+    offsets[n][m] = base;
+    size += cells;
+    return base;
+  }
+
+  /**
+   * Flat index of q(j | i, n, m) within the bucket starting at base.
+   */
+  public static int index(int base, int i, int j, int n) {
+    return base + i * (n + 1) + j;
+  }
+
+  public double get(int index) {
+    return floatValues != null ? floatValues[index] : values[index];
+  }
+
+  public void set(int index, double value) {
+    if (floatValues != null)
+      floatValues[index] = (float) value;
+    else
+      values[index] = value;
+  }
+
+  /**
+   * Takes the cells of every bucket that the other table also has, e.g.
+   * from a checkpoint.  The other buckets keep theirs, and the layout is
+   * unchanged.
+   */
+  public void copyBucketsFrom(DistortionTable other) {
+    for (int n = 0; n < sourceLengthBound(); n++) {
+      for (int m = 0; m < targetLengthBound(n); m++) {
+        int base = base(n, m);
+        int otherBase = other.base(n, m);
+        if (base < 0 || otherBase < 0)
+          continue;
+        for (int cell = 0; cell < m * (n + 1); cell++)
+          set(base + cell, other.get(otherBase + cell));
+      }
+    }
+  }
+
+  /**
+   * Gets q(j | i, n, m), or zero if bucket (n, m) does not exist.
+   */
+  public double get(int j, int i, int n, int m) {
+    int base = base(n, m);
+    return base < 0 ? 0.0 : get(index(base, i, j, n));
+  }
+
+  /**
+   * M-step: sets every cell to its count divided by the total count of its
+   * (i, n, m) context, the row of n + 1 cells it shares.  Rows are swept
+   * one after another through the flat array, so the cost is linear in the
+   * number of cells.  Rows with no counts at all keep their values.
+   *
+   * @param counts expected counts laid out like this table
+   * @return the largest absolute change of any cell
+   */
+  public double normalize(double[] counts) {
+    double maxChange = 0;
+    for (int n = 0; n < offsets.length; n++) {
+      int rowLength = n + 1;
+      for (int m = 0; m < offsets[n].length; m++) {
+        int base = offsets[n][m];
+        if (base < 0)
+          continue;
+        for (int row = base; row < base + m * rowLength; row += rowLength) {
+          double sum = 0;
+          for (int index = row; index < row + rowLength; index++)
+            sum += counts[index];
+          if (sum == 0)
+            continue;
+          for (int index = row; index < row + rowLength; index++) {
+            double newValue = counts[index] / sum;
+            maxChange = Math.max(maxChange, Math.abs(get(index) - newValue));
+            set(index, newValue);
+          }
+        }
+      }
+    }
+    return maxChange;
+  }
+
+  /**
+   * Returns a zeroed count array with the same layout as this table.
+   */
+  public double[] newAccumulator() {
+    return new double[size];
+  }
+}
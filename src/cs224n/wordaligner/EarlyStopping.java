@@ -0,0 +1,75 @@
+package cs224n.wordaligner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Decides when EM has stopped paying off, from the log likelihood of a
+ * small fixed sample of sentence pairs measured after every M-step.
+ * Training should stop once the sample's log likelihood has improved on
+ * its best so far by less than a relative tolerance for patience
+ * iterations in a row.
+ *
+ * Since the sample is scored under the parameters an iteration just
+ * produced, this can stop one full pass earlier than comparing the
+ * likelihoods that the E-steps measure under the previous parameters.
+ */
+public class EarlyStopping {
+  private final double tolerance;
+  private final int patience;
+  private double best = Double.NEGATIVE_INFINITY;
+  private int stale = 0;
+
+  /**
+   * @param tolerance Smallest relative improvement that counts as progress
+   * @param patience Number of iterations in a row without progress before stopping
+   */
+  public EarlyStopping(double tolerance, int patience) {
+    this.tolerance = tolerance;
+    this.patience = Math.max(1, patience);
+  }
+
+  /**
+   * Records the sample's log likelihood after an iteration and returns
+   * whether training should stop.
+   */
+  public boolean update(double logLikelihood) {
+    if (best == Double.NEGATIVE_INFINITY) {
+      best = logLikelihood;
+      return false;
+    }
+    // Log likelihoods are negative, so scale by the magnitude of the best one
+    double improvement = (logLikelihood - best) / Math.abs(best);
+    if (logLikelihood > best) {
+      best = logLikelihood;
+    }
+    if (improvement < tolerance) {
+      stale++;
+    } else {
+      stale = 0;
+    }
+    return stale >= patience;
+  }
+
+  /**
+   * Draws a uniform sample of up to size pairs from one pass over the
+   * corpus.  The same seed gives the same sample.
+   */
+  public static List<SentencePair> sample(Corpus corpus, int size, long seed) {
+    Random random = new Random(seed);
+    List<SentencePair> sample = new ArrayList<SentencePair>(size);
+    long seen = 0;
+    for (SentencePair pair : corpus) {
+      seen++;
+      if (sample.size() < size) {
+        sample.add(pair);
+      } else {
+        long k = (long) (random.nextDouble() * seen);
+        if (k < size)
+          sample.set((int) k, pair);
+      }
+    }
+    return sample;
+  }
+}
@@ -0,0 +1,542 @@
+package cs224n.wordaligner;
+
+import cs224n.util.Shards;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * HMM alignment model (Vogel, Ney and Tillmann, 1996), with the NULL
+ * word handled as in Och and Ney (2003).  Each target word's alignment
+ * depends on the previous one's through a jump width j' - j, whose
+ * probabilities are bucketed at +/- maxJump and normalized over the source
+ * sentence: p(j' | j, n) = c(j' - j) / sum_k c(k - j).
+ *
+ * There are 2n states per sentence: source position j, and a NULL state
+ * n + j that remembers j, so that the jump out of NULL is measured from
+ * the last real position.  Any state moves to NULL with probability p0.
+ *
+ * Training uses a scaled forward-backward pass, decoding uses Viterbi.
+ * Both work in arrays that grow to the longest sentence and are reused,
+ * so nothing is allocated per sentence.  The translation table starts
+ * from IBM1Model's.
+ *
+ * IMPORTANT: Make sure that you read the comments in the
+ * cs224n.wordaligner.WordAligner interface.
+ */
+public class HMMModel implements BatchWordAligner, Configurable {
+  public static final double INCREASE_RATIO = 1.0005;
+
+  public static final int MAX_ATTEMPTS = 100;
+
+  private static final long serialVersionUID = 1315751943476440515L;
+
+  // Indexed by Vocabulary IDs; source ID Vocabulary.NULL_ID is the NULL word.
+  private TranslationTable probTgivenS;
+  private Vocabulary vocabulary;
+
+  // Jumps are bucketed into [-maxJump, maxJump] (-maxJump); jumpProbs[d + maxJump] is c(d)
+  private int maxJump = 7;
+  private double[] jumpProbs;
+  // Probability of moving to NULL (-nullProb)
+  private double nullProb = 0.2;
+
+  // The E-step is split across this many worker threads (-threads)
+  private int numThreads = 1;
+  // IBM1Model's trained table is read from here (-ibm1File)
+  private String ibm1File = IBM1Model.MODEL_FILE;
+  // Per-iteration timings and sizes go to metricsFile (-metricsFile), see TrainingMetrics
+  private String metricsFile;
+  private transient ForkJoinPool pool;
+  private transient TrainingMetrics metrics;
+
+  public HMMModel() {
+    probTgivenS = new TranslationTable(1);
+    jumpProbs = uniformJumps(maxJump);
+  }
+
+  public void configure(Map<String, String> options) {
+    if (options.containsKey("-threads")) {
+      numThreads = Math.max(1, Integer.parseInt(options.get("-threads")));
+    }
+    if (options.containsKey("-ibm1File")) {
+      ibm1File = options.get("-ibm1File");
+    }
+    if (options.containsKey("-maxJump")) {
+      maxJump = Math.max(1, Integer.parseInt(options.get("-maxJump")));
+      jumpProbs = uniformJumps(maxJump);
+    }
+    if (options.containsKey("-nullProb")) {
+      nullProb = Double.parseDouble(options.get("-nullProb"));
+    }
+    if (options.containsKey("-metricsFile")) {
+      metricsFile = options.get("-metricsFile");
+    }
+  }
+
+  private static double[] uniformJumps(int maxJump) {
+    double[] jumps = new double[2 * maxJump + 1];
+    Arrays.fill(jumps, 1.0 / jumps.length);
+    return jumps;
+  }
+
+  public Alignment align(SentencePair sentencePair) {
+    return align(sentencePair, new Lattice());
+  }
+
+  public List<Alignment> alignAll(List<SentencePair> sentencePairs) {
+    Lattice lattice = new Lattice();
+    List<Alignment> alignments = new ArrayList<Alignment>(sentencePairs.size());
+    for (SentencePair sentencePair : sentencePairs) {
+      alignments.add(align(sentencePair, lattice));
+    }
+    return alignments;
+  }
+
+  // Viterbi decoding, with each column rescaled to a maximum of 1
+  private Alignment align(SentencePair sentencePair, Lattice lattice) {
+    Alignment alignment = new Alignment();
+    int[] targetIds = sentencePair.getTargetIds();
+    int[] sourceIds = sentencePair.getSourceIds();
+    int m = targetIds.length;
+    int n = sourceIds.length;
+    if (m == 0 || n == 0)
+      return alignment;
+    int states = 2 * n;
+    lattice.ensure(m, n);
+    lattice.fill(sentencePair, false);
+    double[] emit = lattice.emit;
+    double[] delta = lattice.alpha;
+    double[] transition = lattice.transition;
+    double[] best = lattice.sums;
+    int[] bestState = lattice.bestStates;
+    int[] backPointers = lattice.backPointers;
+
+    for (int j = 0; j < n; j++) {
+      delta[j] = (1 - nullProb) / n * emit[j];
+      delta[n + j] = nullProb / n * emit[n];
+    }
+    rescaleToMax(delta, 0, states);
+
+    for (int i = 1; i < m; i++) {
+      int prev = (i - 1) * states;
+      int cur = i * states;
+      int row = i * (n + 1);
+      for (int p = 0; p < n; p++) {
+        boolean fromNull = delta[prev + n + p] > delta[prev + p];
+        best[p] = fromNull ? delta[prev + n + p] : delta[prev + p];
+        bestState[p] = fromNull ? n + p : p;
+      }
+      for (int j = 0; j < n; j++) {
+        double bestScore = -1;
+        int from = 0;
+        for (int p = 0; p < n; p++) {
+          double score = best[p] * transition[p * n + j];
+          if (score > bestScore) {
+            bestScore = score;
+            from = bestState[p];
+          }
+        }
+        delta[cur + j] = (1 - nullProb) * bestScore * emit[row + j];
+        backPointers[cur + j] = from;
+        delta[cur + n + j] = nullProb * best[j] * emit[row + n];
+        backPointers[cur + n + j] = bestState[j];
+      }
+      rescaleToMax(delta, cur, states);
+    }
+
+    int last = (m - 1) * states;
+    int state = 0;
+    for (int s = 1; s < states; s++) {
+      if (delta[last + s] > delta[last + state])
+        state = s;
+    }
+    for (int i = m - 1; i >= 0; i--) {
+      if (state < n)
+        alignment.addPredictedAlignment(i, state);
+      if (i > 0)
+        state = backPointers[i * states + state];
+    }
+    return alignment;
+  }
+
+  private static void rescaleToMax(double[] values, int start, int length) {
+    double max = 0;
+    for (int k = start; k < start + length; k++)
+      max = Math.max(max, values[k]);
+    if (max > 0) {
+      for (int k = start; k < start + length; k++)
+        values[k] /= max;
+    }
+  }
+
+  void initialize(Corpus trainingPairs) {
+    vocabulary = trainingPairs.getVocabulary();
+    jumpProbs = uniformJumps(maxJump);
+
+    // A first pass completes a streaming corpus's vocabulary before the IBM1 table is
+    // mapped onto it
+    int numPairs = 0;
+    for (Iterator<SentencePair> it = trainingPairs.iterator(); it.hasNext(); it.next()) {
+      numPairs++;
+    }
+    System.out.println("Training on " + numPairs + " sentence pairs");
+    boolean uniform = true;
+    probTgivenS = new TranslationTable(vocabulary.sourceSize());
+    if (new File(ibm1File).exists()) {
+      try {
+        probTgivenS = TranslationTableFile.read(new File(ibm1File), vocabulary);
+        uniform = false;
+        System.out.println("Starting from " + ibm1File);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    } else {
+      System.out.println("No " + ibm1File + "; run IBM1Model first for a better start");
+    }
+
+    // Give every co-occurring pair an entry, so the E-step can find a slot for it.
+    // Without an IBM1 model, every entry starts at 1 / (number of target words), as
+    // IBM1Model does.
+    double uniformProb = 1.0 / Math.max(1, vocabulary.targetSize());
+    for (SentencePair pair : trainingPairs) {
+      for (int target : pair.getTargetIds()) {
+        for (int source : pair.getSourceIds()) {
+          probTgivenS.increment(source, target, 0);
+          if (uniform)
+            probTgivenS.set(source, target, uniformProb);
+        }
+        probTgivenS.increment(Vocabulary.NULL_ID, target, 0);
+        if (uniform)
+          probTgivenS.set(Vocabulary.NULL_ID, target, uniformProb);
+      }
+    }
+  }
+
+  public void train(List<SentencePair> trainingPairs) {
+    train(new ListCorpus(trainingPairs));
+  }
+
+  public void train(Corpus trainingPairs) {
+    initialize(trainingPairs);
+    if (probTgivenS.size() == 0) {
+      return;
+    }
+    if (numThreads > 1) {
+      pool = new ForkJoinPool(numThreads);
+    }
+
+    int attempts = 0;
+    double oldLLH = Double.NEGATIVE_INFINITY;
+    metrics = new TrainingMetrics("HMMModel", metricsFile);
+    try {
+      while (attempts < MAX_ATTEMPTS) {
+        double newLLH = subtrain(trainingPairs, attempts);
+
+        System.out.println("Attempt #: " + attempts + " LLH: " + newLLH);
+        System.out.flush();
+
+        // The first likelihood has nothing to compare against yet.
+        // Note that oldLLH < 0, so our INCREASE_RATIO just needs to make newLLH less negative.
+        if (attempts == 0) {
+          oldLLH = newLLH;
+        } else if (newLLH > oldLLH / INCREASE_RATIO) {
+          oldLLH = newLLH;
+        } else {
+          break;
+        }
+        ++attempts;
+      }
+    } finally {
+      metrics.close();
+      if (pool != null) {
+        pool.shutdown();
+        pool = null;
+      }
+    }
+  }
+
+  // Performs 1 iteration of EM
+  // Returns the log likelihood of the training set under the parameters the iteration started with
+  private double subtrain(Corpus trainingPairs, int attempts) {
+    metrics.startIteration();
+    // Forward-backward is O(n^2 m) per pair, so the E-step is split across workers, each
+    // filling its own expected counts from the same contiguous shard of every batch of the
+    // corpus. The workers' counts are summed in order, so runs with the same thread count
+    // give the same model.
+    final List<ExpectedCounts> partialCounts = new ArrayList<ExpectedCounts>(numThreads);
+    for (int k = 0; k < numThreads; k++) {
+      partialCounts.add(new ExpectedCounts(probTgivenS.newAccumulator(), jumpProbs.length, new Lattice()));
+    }
+    Shards.runBatched(pool, trainingPairs, Shards.DEFAULT_BATCH_SIZE, numThreads,
+        new Shards.BatchTask<SentencePair>() {
+      public void call(int shard, List<SentencePair> pairs) {
+        accumulateCounts(pairs, partialCounts.get(shard));
+      }
+    });
+    ExpectedCounts counts = partialCounts.get(0);
+    for (int k = 1; k < partialCounts.size(); k++) {
+      counts.add(partialCounts.get(k));
+    }
+    metrics.endEStep(counts.numPairs, counts.numTokens);
+
+    double maxChange = 0;
+    for (int source = 0; source < probTgivenS.numSources(); source++) {
+      double sum = 0;
+      for (int slot = 0; slot < probTgivenS.capacity(source); slot++) {
+        sum += counts.stAlignmentCounts[source][slot];
+      }
+      if (sum == 0)
+        continue;
+      for (int slot = 0; slot < probTgivenS.capacity(source); slot++) {
+        if (probTgivenS.targetAt(source, slot) < 0)
+          continue;
+        double newProb = counts.stAlignmentCounts[source][slot] / sum;
+        maxChange = Math.max(maxChange, Math.abs(probTgivenS.valueAt(source, slot) - newProb));
+        probTgivenS.setValueAt(source, slot, newProb);
+      }
+    }
+
+    double jumpTotal = 0;
+    for (double count : counts.jumpCounts)
+      jumpTotal += count;
+    if (jumpTotal > 0) {
+      for (int d = 0; d < jumpProbs.length; d++)
+        jumpProbs[d] = counts.jumpCounts[d] / jumpTotal;
+    }
+
+    System.out.println("Attempt #" + attempts + " Max change: " + maxChange + " P(jump 1): " + jumpProbs[jumpBucket(1)]);
+    metrics.endIteration(attempts, counts.logLikelihood, probTgivenS.size(), jumpProbs.length);
+    return counts.logLikelihood;
+  }
+
+  // Expected counts and log likelihood collected by one E-step worker, with its lattice
+  private static class ExpectedCounts {
+    // Laid out slot-for-slot like probTgivenS
+    final double[][] stAlignmentCounts;
+    // Laid out like jumpProbs
+    final double[] jumpCounts;
+    final Lattice lattice;
+    double logLikelihood;
+    int numPairs;
+    long numTokens;
+
+    ExpectedCounts(double[][] stAlignmentCounts, int numJumps, Lattice lattice) {
+      this.stAlignmentCounts = stAlignmentCounts;
+      this.jumpCounts = new double[numJumps];
+      this.lattice = lattice;
+    }
+
+    void add(ExpectedCounts other) {
+      TranslationTable.addCounts(stAlignmentCounts, other.stAlignmentCounts);
+      for (int d = 0; d < jumpCounts.length; d++)
+        jumpCounts[d] += other.jumpCounts[d];
+      logLikelihood += other.logLikelihood;
+      numPairs += other.numPairs;
+      numTokens += other.numTokens;
+    }
+  }
+
+  // E-step: scaled forward-backward over each pair, adding its expected translation and
+  // jump counts, and its log likelihood under the current parameters
+  private void accumulateCounts(List<SentencePair> trainingPairs, ExpectedCounts counts) {
+    double[][] stAlignmentCounts = counts.stAlignmentCounts;
+    double[] jumpCounts = counts.jumpCounts;
+    Lattice lattice = counts.lattice;
+    double llh = 0;
+    long tokens = 0;
+
+    for (SentencePair pair : trainingPairs) {
+      int[] targetIds = pair.getTargetIds();
+      int[] sourceIds = pair.getSourceIds();
+      int m = targetIds.length;
+      int n = sourceIds.length;
+      tokens += m + n;
+      if (m == 0 || n == 0)
+        continue;
+      int states = 2 * n;
+      lattice.ensure(m, n);
+      lattice.fill(pair, true);
+      double[] emit = lattice.emit;
+      int[] slots = lattice.slots;
+      double[] alpha = lattice.alpha;
+      double[] beta = lattice.beta;
+      double[] scale = lattice.scale;
+      double[] transition = lattice.transition;
+      double[] sums = lattice.sums;
+
+      // Forward, with each column scaled to sum to 1
+      for (int j = 0; j < n; j++) {
+        alpha[j] = (1 - nullProb) / n * emit[j];
+        alpha[n + j] = nullProb / n * emit[n];
+      }
+      boolean possible = normalize(alpha, 0, states, scale, 0);
+      for (int i = 1; i < m && possible; i++) {
+        int prev = (i - 1) * states;
+        int cur = i * states;
+        int row = i * (n + 1);
+        for (int p = 0; p < n; p++)
+          sums[p] = alpha[prev + p] + alpha[prev + n + p];
+        for (int j = 0; j < n; j++) {
+          double sum = 0;
+          for (int p = 0; p < n; p++)
+            sum += sums[p] * transition[p * n + j];
+          alpha[cur + j] = (1 - nullProb) * sum * emit[row + j];
+          alpha[cur + n + j] = nullProb * sums[j] * emit[row + n];
+        }
+        possible = normalize(alpha, cur, states, scale, i);
+      }
+      // The model gives this pair no probability at all; leave it out
+      if (!possible)
+        continue;
+
+      // Backward, scaled by the same factors. A state's future depends only on its position,
+      // so j and its NULL state n + j share a value.
+      int last = (m - 1) * states;
+      Arrays.fill(beta, last, last + states, 1.0);
+      for (int i = m - 2; i >= 0; i--) {
+        int next = (i + 1) * states;
+        int cur = i * states;
+        int row = (i + 1) * (n + 1);
+        for (int p = 0; p < n; p++) {
+          double sum = 0;
+          for (int j = 0; j < n; j++)
+            sum += transition[p * n + j] * emit[row + j] * beta[next + j];
+          double value = ((1 - nullProb) * sum + nullProb * emit[row + n] * beta[next + n + p]) / scale[i + 1];
+          beta[cur + p] = value;
+          beta[cur + n + p] = value;
+        }
+      }
+
+      // Posteriors of the states give translation counts, those of the transitions into
+      // real positions give jump counts
+      for (int i = 0; i < m; i++) {
+        int cur = i * states;
+        int row = i * (n + 1);
+        double nullPosterior = 0;
+        for (int j = 0; j < n; j++) {
+          stAlignmentCounts[sourceIds[j]][slots[row + j]] += alpha[cur + j] * beta[cur + j];
+          nullPosterior += alpha[cur + n + j] * beta[cur + n + j];
+        }
+        stAlignmentCounts[Vocabulary.NULL_ID][slots[row + n]] += nullPosterior;
+
+        if (i == 0)
+          continue;
+        int prev = cur - states;
+        for (int p = 0; p < n; p++)
+          sums[p] = alpha[prev + p] + alpha[prev + n + p];
+        for (int j = 0; j < n; j++) {
+          double into = (1 - nullProb) * emit[row + j] * beta[cur + j] / scale[i];
+          for (int p = 0; p < n; p++)
+            jumpCounts[jumpBucket(j - p)] += sums[p] * transition[p * n + j] * into;
+        }
+      }
+
+      for (int i = 0; i < m; i++)
+        llh += Math.log(scale[i]);
+    }
+    counts.logLikelihood += llh;
+    counts.numPairs += trainingPairs.size();
+    counts.numTokens += tokens;
+  }
+
+  // Scales values[start .. start+length) to sum to 1, keeping the sum in scale[i].
+  // Returns false if they are all 0.
+  private static boolean normalize(double[] values, int start, int length, double[] scale, int i) {
+    double sum = 0;
+    for (int k = start; k < start + length; k++)
+      sum += values[k];
+    scale[i] = sum;
+    if (sum <= 0)
+      return false;
+    for (int k = start; k < start + length; k++)
+      values[k] /= sum;
+    return true;
+  }
+
+  private int jumpBucket(int jump) {
+    return Math.max(-maxJump, Math.min(maxJump, jump)) + maxJump;
+  }
+
+  /**
+   * Scratch arrays for one sentence pair at a time, grown to the largest
+   * pair seen.  Not thread safe; each worker has its own.
+   */
+  private final class Lattice {
+    // m x (n + 1): P(t_i | s_j), then P(t_i | NULL) in column n
+    double[] emit = new double[0];
+    // Slots of those entries in probTgivenS, laid out like emit
+    int[] slots = new int[0];
+    // m x 2n forward (or Viterbi) and backward values, and the forward scale of each column
+    double[] alpha = new double[0];
+    double[] beta = new double[0];
+    double[] scale = new double[0];
+    int[] backPointers = new int[0];
+    // n x n: p(j | previous position p, n) at p * n + j
+    double[] transition = new double[0];
+    // Per previous position scratch
+    double[] sums = new double[0];
+    int[] bestStates = new int[0];
+
+    void ensure(int m, int n) {
+      int cells = m * (n + 1);
+      if (emit.length < cells) {
+        emit = new double[cells];
+        slots = new int[cells];
+      }
+      int stateCells = m * 2 * n;
+      if (alpha.length < stateCells) {
+        alpha = new double[stateCells];
+        beta = new double[stateCells];
+        backPointers = new int[stateCells];
+      }
+      if (scale.length < m)
+        scale = new double[m];
+      if (transition.length < n * n)
+        transition = new double[n * n];
+      if (sums.length < n) {
+        sums = new double[n];
+        bestStates = new int[n];
+      }
+    }
+
+    // Looks up the pair's translation probabilities, and its jump probabilities
+    void fill(SentencePair pair, boolean withSlots) {
+      int[] targetIds = pair.getTargetIds();
+      int[] sourceIds = pair.getSourceIds();
+      int m = targetIds.length;
+      int n = sourceIds.length;
+      for (int i = 0; i < m; i++) {
+        int row = i * (n + 1);
+        int t = targetIds[i];
+        for (int j = 0; j < n; j++) {
+          int slot = probTgivenS.find(sourceIds[j], t);
+          emit[row + j] = slot < 0 ? 0 : probTgivenS.valueAt(sourceIds[j], slot);
+          if (withSlots)
+            slots[row + j] = slot;
+        }
+        int slot = probTgivenS.find(Vocabulary.NULL_ID, t);
+        emit[row + n] = slot < 0 ? 0 : probTgivenS.valueAt(Vocabulary.NULL_ID, slot);
+        if (withSlots)
+          slots[row + n] = slot;
+      }
+
+      for (int p = 0; p < n; p++) {
+        double norm = 0;
+        for (int j = 0; j < n; j++) {
+          double c = jumpProbs[jumpBucket(j - p)];
+          transition[p * n + j] = c;
+          norm += c;
+        }
+        for (int j = 0; j < n; j++)
+          transition[p * n + j] /= norm;
+      }
+    }
+  }
+}
@@ -1,11 +1,22 @@
 package cs224n.wordaligner;
 
-import cs224n.util.*;
-
+import cs224n.util.Shards;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * IBM 1 Model:
@@ -18,7 +29,7 @@ import java.util.List;
  * @author Dan Klein
  * @author Spence Green
  */
-public class IBM1Model implements WordAligner {
+public class IBM1Model implements WordAligner, Configurable, SinglePrecision, ShardedEM.Model {
 
   public static final double INCREASE_RATIO = 1.0005;
 
@@ -26,12 +37,62 @@ public class IBM1Model implements WordAligner {
   public static final int MAX_ATTEMPTS = 50;
   public static final double MIN_CHANGE = .01;
 
+  // Written by train(), read by IBM2Model (see TranslationTableFile)
+  public static final String MODEL_FILE = "IBM1Model_probTgivenS.bin";
+  // The online EM state is saved next to the table and to checkpoints, in a file
+  // with this suffix (see writeOnlineState())
+  public static final String ONLINE_SUFFIX = ".online";
+
   private static final long serialVersionUID = 1315751943476440515L;
 
   // I want to know the prob of an t word given an s word (or NULL)
   // To initialize, I need to know the # of s words... (sources)
   // since it should be 1/(s+1)
-  private CounterMap<String, String> probTgivenS;
+  // Indexed by Vocabulary IDs; source ID Vocabulary.NULL_ID is the NULL word.
+  private TranslationTable probTgivenS;
+  private Vocabulary vocabulary;
+
+  // The E-step is split across this many worker threads (-threads)
+  private int numThreads = 1;
+  // The trained table is written here (-ibm1File), for the models that start from it
+  private String ibm1File = MODEL_FILE;
+  // With -singlePrecision, probTgivenS stores floats; expected counts are still doubles
+  private boolean singlePrecision = false;
+
+  // After each M-step, entries below pruneThreshold (-pruneThreshold) or outside
+  // their source's pruneTopK largest (-pruneTopK) are dropped. NULL's are never pruned.
+  private double pruneThreshold = 0;
+  private int pruneTopK = 0;
+
+  // Online (stepwise) EM state for update(). The expected count of each source per
+  // sentence, sourceTotals[s] * totalsScale, is all that is needed besides probTgivenS:
+  // the expected count of (s, t) is probTgivenS(t | s) times it.
+  private double[] sourceTotals = new double[0];
+  private double totalsScale = 1;
+  private int numUpdates;
+  // Step size of update k is (k + 2)^-onlineDecay (-onlineDecay, in (0.5, 1])
+  private double onlineDecay = 0.7;
+  // update() takes one step per this many sentence pairs (-onlineBatchSize)
+  private int onlineBatchSize = 1000;
+  // Every checkpointEvery iterations (-checkpointEvery; 0 = never) the model is saved to
+  // checkpointFile (-checkpointFile), and -resume continues training from there.
+  private int checkpointEvery = 0;
+  private String checkpointFile = "IBM1Model.checkpoint";
+  private boolean resume = false;
+  // Per-iteration timings, throughput and table sizes go to metricsFile (-metricsFile),
+  // as CSV, or as JSON Lines if it ends in .json
+  private String metricsFile;
+  private transient TrainingMetrics metrics;
+  // With -earlyStopSample N, training also stops once the log likelihood of a fixed random
+  // sample of N training pairs, scored after each M-step, improves by less than
+  // earlyStopTolerance (-earlyStopTolerance, relative) for earlyStopPatience
+  // (-earlyStopPatience) iterations in a row
+  private int earlyStopSample = 0;
+  private double earlyStopTolerance = INCREASE_RATIO - 1;
+  private int earlyStopPatience = 1;
+  // With shards, train() runs the E-step on worker processes too (see ShardedEM)
+  private transient ShardedEM shards;
+  private transient ForkJoinPool pool;
 
   // Counts co-occurrences, but currently unused for IBM1Model
   //private CounterMap<String,String> sourceTargetCounts;
@@ -39,24 +100,65 @@ public class IBM1Model implements WordAligner {
   public IBM1Model() {
 	super();
 	
-	probTgivenS = new CounterMap<String, String>();
+	probTgivenS = new TranslationTable(1);
   }
 
 
+  public void configure(Map<String, String> options) {
+    if (options.containsKey("-threads")) {
+      numThreads = Math.max(1, Integer.parseInt(options.get("-threads")));
+    }
+    if (options.containsKey("-ibm1File")) {
+      ibm1File = options.get("-ibm1File");
+    }
+    singlePrecision = options.containsKey("-singlePrecision");
+    if (options.containsKey("-checkpointEvery")) {
+      checkpointEvery = Math.max(0, Integer.parseInt(options.get("-checkpointEvery")));
+    }
+    if (options.containsKey("-checkpointFile")) {
+      checkpointFile = options.get("-checkpointFile");
+    }
+    resume = options.containsKey("-resume");
+    if (options.containsKey("-metricsFile")) {
+      metricsFile = options.get("-metricsFile");
+    }
+    if (options.containsKey("-earlyStopSample")) {
+      earlyStopSample = Integer.parseInt(options.get("-earlyStopSample"));
+    }
+    if (options.containsKey("-earlyStopTolerance")) {
+      earlyStopTolerance = Double.parseDouble(options.get("-earlyStopTolerance"));
+    }
+    if (options.containsKey("-earlyStopPatience")) {
+      earlyStopPatience = Integer.parseInt(options.get("-earlyStopPatience"));
+    }
+    if (options.containsKey("-pruneThreshold")) {
+      pruneThreshold = Double.parseDouble(options.get("-pruneThreshold"));
+    }
+    if (options.containsKey("-pruneTopK")) {
+      pruneTopK = Integer.parseInt(options.get("-pruneTopK"));
+    }
+    if (options.containsKey("-onlineDecay")) {
+      onlineDecay = Double.parseDouble(options.get("-onlineDecay"));
+    }
+    if (options.containsKey("-onlineBatchSize")) {
+      onlineBatchSize = Math.max(1, Integer.parseInt(options.get("-onlineBatchSize")));
+    }
+  }
+
   public Alignment align(SentencePair sentencePair) {
     Alignment alignment = new Alignment();
-    List<String> targetWords = sentencePair.getTargetWords();
-    List<String> sourceWords = sentencePair.getSourceWords();
+    int[] targetIds = sentencePair.getTargetIds();
+    int[] sourceIds = sentencePair.getSourceIds();
 
     // Let's see...
     // We probably want to estimate P(a_j = i | t, s)
     // And we'll probably want to pick the i that makes the largest P
 
-    for (int j = 0; j < targetWords.size(); j++) {
+    for (int j = 0; j < targetIds.length; j++) {
 	  int bestI = -1; // null
-	  double bestAlignProb = probTgivenS.getCount(NULL_WORD, targetWords.get(j));
-      for (int i = 0; i < sourceWords.size(); i++) {
-        double prob = probTgivenS.getCount(sourceWords.get(i), targetWords.get(j));
+	  double bestAlignProb = probTgivenS.get(Vocabulary.NULL_ID, targetIds[j]);
+      for (int i = 0; i < sourceIds.length; i++) {
+        double prob = probTgivenS.get(sourceIds[i], targetIds[j]);
 
         if (prob > bestAlignProb) {
 	      bestI = i;
@@ -73,156 +175,546 @@ public class IBM1Model implements WordAligner {
     return alignment;
   }
   
-  private void initialize(List<SentencePair> trainingPairs) {
+  public void initialize(Corpus trainingPairs) {
+	vocabulary = trainingPairs.getVocabulary();
+	probTgivenS = new TranslationTable(vocabulary.sourceSize(), singlePrecision);
 	for (SentencePair pair : trainingPairs) {
-  	  List<String> targetWords = pair.getTargetWords();
-      List<String> sourceWords = pair.getSourceWords();
-      for(String target : targetWords){
-        for(String source : sourceWords){
-          probTgivenS.setCount(source, target, 1.0);
+  	  int[] targetIds = pair.getTargetIds();
+      int[] sourceIds = pair.getSourceIds();
+      for(int target : targetIds){
+        for(int source : sourceIds){
+          probTgivenS.set(source, target, 1.0);
         }
-        probTgivenS.setCount(NULL_WORD, target, 1.0); // also deal with NULL
+        probTgivenS.set(Vocabulary.NULL_ID, target, 1.0); // also deal with NULL
       }
   	}
+	setUniform();
+  }
+
+  // Sets every entry to 1 / (number of target words). Any constant gives the same first
+  // E-step; this one makes its log likelihood a real one, to compare the next against.
+  private void setUniform() {
+	double uniform = 1.0 / Math.max(1, vocabulary.targetSize());
+	for (int source = 0; source < probTgivenS.numSources(); source++) {
+	  for (int slot = 0; slot < probTgivenS.capacity(source); slot++) {
+	    if (probTgivenS.targetAt(source, slot) >= 0)
+	      probTgivenS.setValueAt(source, slot, uniform);
+	  }
+	}
   }
 
   public void train(List<SentencePair> trainingPairs) {
+    train(new ListCorpus(trainingPairs));
+  }
+
+  public void train(Corpus trainingPairs) {
     initialize(trainingPairs);
+    if (shards != null) {
+      shards.initialize(this, vocabulary);
+      // The workers' entries are uniform over their own vocabularies
+      setUniform();
+    }
+    if (probTgivenS.size() == 0) {
+      return;
+    }
+    if (numThreads > 1) {
+      pool = new ForkJoinPool(numThreads);
+    }
 
     // Now for the real meat of the algorithm
     int attempts = 0;
-    double oldLLH = -1 * EXTREMELY_LARGE;
-    while (attempts < MAX_ATTEMPTS) {
-      double newLLH = subtrain(trainingPairs, attempts);
-      
-      System.out.println("Attempt #: " + attempts + " LLH: " + newLLH);
-      System.out.flush();
-      
-      // Note that oldLLH < 0, so our INCREASE_RATIO just needs to make newLLH less negative.
-      // If it is at least 5% less negative than before, we are making progress and can iterate.
-      if (newLLH > oldLLH / INCREASE_RATIO) {
-        oldLLH = newLLH;
-      } else {
-        break;
+    double oldLLH = Double.NEGATIVE_INFINITY;
+    if (resume && new File(checkpointFile).exists()) {
+      try {
+        Checkpoint checkpoint = Checkpoint.read(new File(checkpointFile), vocabulary);
+        // Entries of pairs the checkpointed run never saw keep their initial value
+        probTgivenS.copyValuesFrom(checkpoint.translations);
+        attempts = checkpoint.iteration;
+        oldLLH = checkpoint.logLikelihood;
+        File onlineState = new File(checkpointFile + ONLINE_SUFFIX);
+        if (onlineState.exists()) {
+          readOnlineState(onlineState);
+        }
+        System.out.println("Resuming from " + checkpointFile + " at attempt #" + attempts);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
       }
-      
-      ++attempts;
-	}
+    }
+    Checkpoint.Writer checkpoints = checkpointEvery > 0 ? new Checkpoint.Writer(new File(checkpointFile)) : null;
+    metrics = new TrainingMetrics("IBM1Model", metricsFile);
+    List<SentencePair> sample = null;
+    EarlyStopping earlyStopping = null;
+    if (earlyStopSample > 0) {
+      sample = EarlyStopping.sample(trainingPairs, earlyStopSample, 0);
+      earlyStopping = new EarlyStopping(earlyStopTolerance, earlyStopPatience);
+    }
+    try {
+      while (attempts < MAX_ATTEMPTS) {
+        double newLLH = subtrain(trainingPairs, attempts);
+        
+        System.out.println("Attempt #: " + attempts + " LLH: " + newLLH);
+        System.out.flush();
+        
+        // The likelihood is measured during the E-step, so the first one is for the
+        // initial, uniform P's. There is nothing to compare it against yet.
+        // Note that oldLLH < 0, so our INCREASE_RATIO just needs to make newLLH less negative.
+        // If it is at least 5% less negative than before, we are making progress and can iterate.
+        if (attempts == 0) {
+          oldLLH = newLLH;
+        } else if (newLLH > oldLLH / INCREASE_RATIO) {
+          oldLLH = newLLH;
+        } else {
+          break;
+        }
+        if (earlyStopping != null) {
+          double sampleLLH = logLikelihood(sample);
+          System.out.println("Attempt #: " + attempts + " sample LLH: " + sampleLLH);
+          if (earlyStopping.update(sampleLLH)) {
+            System.out.println("Stopping early: sample LLH stopped improving");
+            break;
+          }
+        }
+        
+        ++attempts;
+        if (checkpoints != null && attempts % checkpointEvery == 0) {
+          checkpoints.save(attempts, oldLLH, probTgivenS, vocabulary, null);
+          try {
+            writeOnlineState(new File(checkpointFile + ONLINE_SUFFIX));
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      }
+    } finally {
+      if (checkpoints != null) {
+        checkpoints.close();
+      }
+      metrics.close();
+      if (pool != null) {
+        pool.shutdown();
+        pool = null;
+      }
+    }
     
-    // Now that we're done, serialize the data into a binary file.
+    // Now that we're done, write the data into a binary file.
     // This will be used for IBM2Model.java
     try
     {
-      FileOutputStream fileOut = new FileOutputStream("IBM1Model_probTgivenS.ser");
-      ObjectOutputStream out = new ObjectOutputStream(fileOut);
-      out.writeObject(probTgivenS);
-      out.flush();
-      out.close();
-      fileOut.close();
+      TranslationTableFile.write(probTgivenS, vocabulary, new File(ibm1File));
+      writeOnlineState(new File(ibm1File + ONLINE_SUFFIX));
       
     } catch(IOException i) {
         i.printStackTrace();
     }
   }
 
-  // Performs 1 iteration of the IBM 1 Model
-  // Returns the maximum change to the stored P's
-  private double subtrain(List<SentencePair> trainingPairs, int attempts) {
-	CounterMap<String, String> stAlignmentCounts = new CounterMap<String, String>();
+  public void useSinglePrecision() {
+    singlePrecision = true;
+    probTgivenS = probTgivenS.withSinglePrecision();
+  }
 
-	// For each SentencePair...
-    for(SentencePair pair : trainingPairs) {
-      List<String> targetWords = pair.getTargetWords();
-      List<String> sourceWords = pair.getSourceWords();
+  public void setShards(ShardedEM shards) {
+    this.shards = shards;
+  }
 
-      for(int j = 0; j < targetWords.size(); ++j) {
-		// We need to find P(a_j = i | t, s)
-		String t = targetWords.get(j);
+  public TranslationTable getTranslationTable() {
+    return probTgivenS;
+  }
 
-		// To do so, first compute the sum of P(t_j | s_i) for all i
-		double sum = 0;
-		for (int i = 0; i < sourceWords.size(); ++i) {
-			sum += probTgivenS.getCount(sourceWords.get(i), t);
-		}
-		// And NULL
-		sum += probTgivenS.getCount(NULL_WORD, t);
-		
-		for (int i = 0; i < sourceWords.size(); ++i) {
-			double p = probTgivenS.getCount(sourceWords.get(i), t);
-			stAlignmentCounts.incrementCount(sourceWords.get(i), t, p / sum);
-		}
+  public DistortionTable getDistortionTable() {
+    return null;
+  }
 
-		// Handle NULL
-		double p = probTgivenS.getCount(NULL_WORD, t);
-		stAlignmentCounts.incrementCount(NULL_WORD, t, p / sum);
+  public void setTables(TranslationTable translations, DistortionTable distortions) {
+    probTgivenS = singlePrecision ? translations.withSinglePrecision() : translations;
+  }
+
+  /**
+   * Folds new sentence pairs into a trained model with stepwise EM, instead
+   * of retraining from scratch.  Each mini-batch of onlineBatchSize pairs
+   * gets one E-step, and its expected counts are interpolated into the
+   * model's with step size (k + 2)^-onlineDecay, where k counts the steps
+   * taken so far, training counting as one step per mini-batch of its
+   * corpus.  May be called any number of times.  Pairs must share the
+   * training Vocabulary; unseen words are added.
+   */
+  public void update(List<SentencePair> newPairs) {
+    if (vocabulary == null) {
+      train(newPairs);
+      return;
+    }
+    if (numThreads > 1) {
+      pool = new ForkJoinPool(numThreads);
+    }
+    try {
+      for (int start = 0; start < newPairs.size(); start += onlineBatchSize) {
+        List<SentencePair> batch = newPairs.subList(start, Math.min(newPairs.size(), start + onlineBatchSize));
+        double llh = stepwiseUpdate(batch);
+        System.out.println("Online update #" + numUpdates + " LLH: " + llh + " entries: " + probTgivenS.size());
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+        pool = null;
+      }
+    }
+
+    try {
+      TranslationTableFile.write(probTgivenS, vocabulary, new File(ibm1File));
+      writeOnlineState(new File(ibm1File + ONLINE_SUFFIX));
+    } catch(IOException i) {
+      i.printStackTrace();
+    }
+  }
+
+  /**
+   * Loads the model that train() or update() saved to ibm1File, with its
+   * online EM state, so that update() carries on from it.  The saved
+   * model's words are added to the given Vocabulary.
+   */
+  public void load(Vocabulary vocabulary) throws IOException {
+    this.vocabulary = vocabulary;
+    probTgivenS = TranslationTableFile.read(new File(ibm1File), vocabulary, singlePrecision, true);
+    readOnlineState(new File(ibm1File + ONLINE_SUFFIX));
+  }
+
+  // Layout (big-endian): int numUpdates, int number of sources S, then S x (UTF source
+  // word, double expected count per sentence). Words rather than IDs, like
+  // TranslationTableFile, so the state can be read against another run's Vocabulary.
+  private void writeOnlineState(File file) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      int numSources = Math.min(sourceTotals.length, vocabulary.sourceSize());
+      out.writeInt(numUpdates);
+      out.writeInt(numSources);
+      for (int source = 0; source < numSources; source++) {
+        out.writeUTF(vocabulary.getSourceWord(source));
+        out.writeDouble(sourceTotals[source] * totalsScale);
       }
+    } finally {
+      out.close();
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private void readOnlineState(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      numUpdates = in.readInt();
+      int numSources = in.readInt();
+      sourceTotals = new double[Math.max(probTgivenS.numSources(), vocabulary.sourceSize())];
+      totalsScale = 1;
+      for (int k = 0; k < numSources; k++) {
+        int source = vocabulary.addSourceWord(in.readUTF());
+        double total = in.readDouble();
+        if (source >= sourceTotals.length)
+          sourceTotals = Arrays.copyOf(sourceTotals, vocabulary.sourceSize());
+        sourceTotals[source] = total;
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  // One stepwise EM update on a mini-batch. Returns its log likelihood under the
+  // P's before the update.
+  private double stepwiseUpdate(final List<SentencePair> batch) {
+    // New co-occurrences start out uniform over their source's row for the E-step,
+    // but carry no old mass into the update
+    List<Long> newEntries = new ArrayList<Long>();
+    for (SentencePair pair : batch) {
+      for (int target : pair.getTargetIds()) {
+        for (int source : pair.getSourceIds()) {
+          if (probTgivenS.find(source, target) < 0) {
+            probTgivenS.set(source, target, 1.0 / (probTgivenS.rowSize(source) + 1));
+            newEntries.add(((long) source << 32) | target);
+          }
+        }
+        if (probTgivenS.find(Vocabulary.NULL_ID, target) < 0) {
+          probTgivenS.set(Vocabulary.NULL_ID, target, 1.0 / (probTgivenS.rowSize(Vocabulary.NULL_ID) + 1));
+          newEntries.add(((long) Vocabulary.NULL_ID << 32) | target);
+        }
+      }
+    }
+    if (sourceTotals.length < probTgivenS.numSources()) {
+      sourceTotals = Arrays.copyOf(sourceTotals, probTgivenS.numSources());
+    }
+
+    // Only the rows of the batch's sources get counts
+    boolean[] touched = new boolean[probTgivenS.numSources()];
+    touched[Vocabulary.NULL_ID] = true;
+    for (SentencePair pair : batch) {
+      for (int source : pair.getSourceIds())
+        touched[source] = true;
+    }
+    int numTouched = 0;
+    for (boolean t : touched) {
+      if (t) numTouched++;
+    }
+    final int[] touchedSources = new int[numTouched];
+    for (int source = 0, k = 0; source < touched.length; source++) {
+      if (touched[source]) touchedSources[k++] = source;
+    }
+
+    // E-step over the batch only, into sparse counts
+    List<ExpectedCounts> partialCounts = Shards.run(pool, batch.size(), numThreads,
+        new Shards.Task<ExpectedCounts>() {
+      public ExpectedCounts call(int shard, int start, int end) {
+        ExpectedCounts counts = new ExpectedCounts(probTgivenS.newAccumulator(touchedSources));
+        accumulateCounts(batch.subList(start, end), counts);
+        return counts;
+      }
+    });
+    double[][] batchCounts = partialCounts.get(0).stAlignmentCounts;
+    double llh = partialCounts.get(0).logLikelihood;
+    for (int k = 1; k < partialCounts.size(); k++) {
+      TranslationTable.addCounts(batchCounts, partialCounts.get(k).stAlignmentCounts);
+      llh += partialCounts.get(k).logLikelihood;
+    }
+    for (long entry : newEntries) {
+      probTgivenS.set((int) (entry >>> 32), (int) entry, 0);
+    }
+
+    // mu <- (1 - eta) mu + eta * (batch counts per sentence). Rows the batch never
+    // touches are only scaled, which leaves their P's as they are, so the shrinking
+    // is kept in totalsScale and only touched rows are renormalized, each by the sum
+    // of its mu.
+    double eta = Math.pow(numUpdates + 2, -onlineDecay);
+    numUpdates++;
+    double oldScale = totalsScale;
+    totalsScale *= 1 - eta;
+    if (totalsScale < 1e-100) {
+      for (int source = 0; source < sourceTotals.length; source++)
+        sourceTotals[source] *= totalsScale;
+      oldScale /= totalsScale;
+      totalsScale = 1;
+    }
+    for (int source : touchedSources) {
+      double oldTotal = sourceTotals[source] * oldScale;
+      double[] mu = new double[probTgivenS.capacity(source)];
+      double newTotal = 0;
+      for (int slot = 0; slot < mu.length; slot++) {
+        if (probTgivenS.targetAt(source, slot) < 0)
+          continue;
+        mu[slot] = (1 - eta) * probTgivenS.valueAt(source, slot) * oldTotal
+            + eta * batchCounts[source][slot] / batch.size();
+        newTotal += mu[slot];
+      }
+      if (newTotal == 0)
+        continue;
+      for (int slot = 0; slot < mu.length; slot++) {
+        if (probTgivenS.targetAt(source, slot) >= 0)
+          probTgivenS.setValueAt(source, slot, mu[slot] / newTotal);
+      }
+      sourceTotals[source] = newTotal / totalsScale;
+    }
+
+    if (pruneThreshold > 0 || pruneTopK > 0) {
+      probTgivenS.prune(pruneThreshold, pruneTopK, Vocabulary.NULL_ID);
     }
+    return llh;
+  }
+
+  // Performs 1 iteration of the IBM 1 Model
+  // Returns the log likelihood of the training set under the P's the iteration started with
+  private double subtrain(Corpus trainingPairs, int attempts) {
+	metrics.startIteration();
+	// Worker processes run their E-steps while this one runs its own
+	if (shards != null) {
+	  shards.broadcast(this, vocabulary, attempts);
+	}
+	ShardedEM.Counts counts = expectedCounts(trainingPairs);
+	if (shards != null) {
+	  ShardedEM.Counts shardCounts = shards.collect(this, vocabulary);
+	  TranslationTable.addCounts(counts.translations, shardCounts.translations);
+	  counts.logLikelihood += shardCounts.logLikelihood;
+	  counts.numPairs += shardCounts.numPairs;
+	  counts.numTokens += shardCounts.numTokens;
+	}
+	double[][] stAlignmentCounts = counts.translations;
+	double llh = counts.logLikelihood;
+	int numPairs = counts.numPairs;
+	metrics.endEStep(numPairs, counts.numTokens);
+	// The per-sentence source counts seed online EM (see update())
+	sourceTotals = new double[probTgivenS.numSources()];
+	totalsScale = 1;
+	numUpdates = (numPairs + onlineBatchSize - 1) / onlineBatchSize;
 
     // Maximum change (this is an absolute value)
     double maxChange = 0;
 
     // Now renormalize
-    for (String source : probTgivenS.keySet()) {
+    for (int source = 0; source < probTgivenS.numSources(); source++) {
       // find the denominator
       // a sum over all target given this source
       double sum = 0;
-      for (String target : probTgivenS.getCounter(source).keySet()) {
-		sum += stAlignmentCounts.getCount(source, target);
+      for (int slot = 0; slot < probTgivenS.capacity(source); slot++) {
+		sum += stAlignmentCounts[source][slot];
 	  }
+	  sourceTotals[source] = sum / numPairs;
 
 	  // The numerator is just a single stAlignmentCount
-	  for (String target : probTgivenS.getCounter(source).keySet()) {
-        double newProb = stAlignmentCounts.getCount(source, target) / sum;
+	  for (int slot = 0; slot < probTgivenS.capacity(source); slot++) {
+	    if (probTgivenS.targetAt(source, slot) < 0) {
+	      continue;
+	    }
+        double newProb = stAlignmentCounts[source][slot] / sum;
 
         // Update the maximum change value
-        double change = Math.abs(probTgivenS.getCount(source, target) - newProb);
+        double change = Math.abs(probTgivenS.valueAt(source, slot) - newProb);
         if (change > maxChange) {
 	      maxChange = change;
 		}
 
         // Set the new probability!
-        probTgivenS.setCount(source, target, newProb);
+        probTgivenS.setValueAt(source, slot, newProb);
 	  }
 	}
 
     System.out.println("Attempt #" + attempts + ": " + maxChange);
-    System.out.println(probTgivenS.getCount("le", "the"));
+    if (pruneThreshold > 0 || pruneTopK > 0) {
+      int pruned = probTgivenS.prune(pruneThreshold, pruneTopK, Vocabulary.NULL_ID);
+      System.out.println("Pruned " + pruned + " entries, " + probTgivenS.size() + " left");
+    }
+    System.out.println(probTgivenS.get(vocabulary.getSourceId("le"), vocabulary.getTargetId("the")));
+    metrics.endIteration(attempts, llh, probTgivenS.size(), 0);
     
     //return maxChange;
-    return logLikelihood(trainingPairs);
+    return llh;
   }
 
-  // Compute the log likelihood of the training set given our current q and p parameters
-  private double logLikelihood(List<SentencePair> trainingPairs) {
-    // Log Likelihood = SUM[all pairs a]
-	  
-	double llh = 0;
-	  
-	for (SentencePair sentencePair : trainingPairs) {
-      List<String> targetWords = sentencePair.getTargetWords();
-      List<String> sourceWords = sentencePair.getSourceWords();
-
-      // Let's see...
-      // We probably want to estimate P(a_i = j | t, s)
-      // And we'll probably want to pick the j that makes the largest P
-
-      for (int i = 0; i < targetWords.size(); i++) {
-        // Start by assuming the best is NULL_WORD, then improve on this
-	    String targetWord = targetWords.get(i);
-	  
-	    double bestAlignProb = probTgivenS.getCount(NULL_WORD, targetWord);
-        for (int j = 0; j < sourceWords.size(); j++) {
-          double prob = probTgivenS.getCount(sourceWords.get(j), targetWords.get(i));
-
-          if (prob > bestAlignProb) {
-	        bestAlignProb = prob;
-		  }
+  public ShardedEM.Counts expectedCounts(Corpus trainingPairs) {
+	// Each worker fills its own expected counts from the same contiguous shard of every
+	// batch of the corpus. The workers' counts are summed in order, so runs with the same
+	// thread count give the same model.
+	boolean ownPool = pool == null && numThreads > 1;
+	if (ownPool) {
+	  pool = new ForkJoinPool(numThreads);
+	}
+	final List<ExpectedCounts> partialCounts = new ArrayList<ExpectedCounts>(numThreads);
+	for (int k = 0; k < numThreads; k++) {
+	  partialCounts.add(new ExpectedCounts(probTgivenS.newAccumulator()));
+	}
+	try {
+	  Shards.runBatched(pool, trainingPairs, Shards.DEFAULT_BATCH_SIZE, numThreads,
+	      new Shards.BatchTask<SentencePair>() {
+	    public void call(int shard, List<SentencePair> pairs) {
+	      accumulateCounts(pairs, partialCounts.get(shard));
 	    }
-        
-        llh += Math.log(bestAlignProb);
+	  });
+	} finally {
+	  if (ownPool) {
+	    pool.shutdown();
+	    pool = null;
 	  }
 	}
-    
-	return llh;
+	ShardedEM.Counts counts = new ShardedEM.Counts(partialCounts.get(0).stAlignmentCounts, null);
+	for (int k = 0; k < partialCounts.size(); k++) {
+	  if (k > 0)
+	    TranslationTable.addCounts(counts.translations, partialCounts.get(k).stAlignmentCounts);
+	  counts.logLikelihood += partialCounts.get(k).logLikelihood;
+	  counts.numPairs += partialCounts.get(k).numPairs;
+	  counts.numTokens += partialCounts.get(k).numTokens;
+	}
+	return counts;
+  }
+
+  // Log likelihood of the given pairs under the current P's, as the E-step measures it
+  double logLikelihood(List<SentencePair> pairs) {
+    double llh = 0;
+    for (SentencePair pair : pairs) {
+      int[] sourceIds = pair.getSourceIds();
+      for (int t : pair.getTargetIds()) {
+        double sum = probTgivenS.get(Vocabulary.NULL_ID, t);
+        for (int source : sourceIds) {
+          sum += probTgivenS.get(source, t);
+        }
+        if (sum > 0)
+          llh += Math.log(sum / (sourceIds.length + 1));
+      }
+    }
+    return llh;
+  }
+
+  // Runs the E-step alone over the given pairs on the calling thread, after initialize(),
+  // and returns their log likelihood. The counts are thrown away. Used by the benchmarks.
+  double expectationStep(List<SentencePair> pairs) {
+    ExpectedCounts counts = new ExpectedCounts(probTgivenS.newAccumulator());
+    accumulateCounts(pairs, counts);
+    return counts.logLikelihood;
+  }
+
+  // Expected counts and log likelihood collected by one E-step worker
+  private static class ExpectedCounts {
+    // Laid out slot-for-slot like probTgivenS
+    final double[][] stAlignmentCounts;
+    double logLikelihood;
+    int numPairs;
+    long numTokens;
+
+    ExpectedCounts(double[][] stAlignmentCounts) {
+      this.stAlignmentCounts = stAlignmentCounts;
+    }
+  }
+
+  // E-step: adds the expected alignment counts of the given pairs, and their
+  // log likelihood under the current P's
+  private void accumulateCounts(List<SentencePair> trainingPairs, ExpectedCounts counts) {
+	double[][] stAlignmentCounts = counts.stAlignmentCounts;
+	double llh = 0;
+	long tokens = 0;
+	int[] slots = new int[0];
+
+	// For each SentencePair...
+    for(SentencePair pair : trainingPairs) {
+      int[] targetIds = pair.getTargetIds();
+      int[] sourceIds = pair.getSourceIds();
+      tokens += targetIds.length + sourceIds.length;
+      if (slots.length < sourceIds.length + 1) {
+        slots = new int[sourceIds.length + 1];
+      }
+
+      for(int j = 0; j < targetIds.length; ++j) {
+		// We need to find P(a_j = i | t, s)
+		int t = targetIds[j];
+
+		// To do so, first compute the sum of P(t_j | s_i) for all i,
+		// remembering where each entry lives (NULL's goes last).
+		// Pruned entries have no slot and count as 0.
+		double sum = 0;
+		for (int i = 0; i < sourceIds.length; ++i) {
+			slots[i] = probTgivenS.find(sourceIds[i], t);
+			if (slots[i] >= 0)
+			  sum += probTgivenS.valueAt(sourceIds[i], slots[i]);
+		}
+		// And NULL
+		slots[sourceIds.length] = probTgivenS.find(Vocabulary.NULL_ID, t);
+		if (slots[sourceIds.length] >= 0)
+		  sum += probTgivenS.valueAt(Vocabulary.NULL_ID, slots[sourceIds.length]);
+		// Words the model gives no probability at all are left out, as in IBM2Model
+		if (sum == 0)
+		  continue;
+		
+		for (int i = 0; i < sourceIds.length; ++i) {
+			if (slots[i] < 0)
+			  continue;
+			double p = probTgivenS.valueAt(sourceIds[i], slots[i]);
+			stAlignmentCounts[sourceIds[i]][slots[i]] += p / sum;
+		}
+
+		// Handle NULL
+		if (slots[sourceIds.length] >= 0) {
+		  double p = probTgivenS.valueAt(Vocabulary.NULL_ID, slots[sourceIds.length]);
+		  stAlignmentCounts[Vocabulary.NULL_ID][slots[sourceIds.length]] += p / sum;
+		}
+
+		// sum / (n + 1) is P(t_j | s), with each alignment (NULL included) equally likely
+		llh += Math.log(sum / (sourceIds.length + 1));
+      }
+    }
+    counts.logLikelihood += llh;
+    counts.numPairs += trainingPairs.size();
+    counts.numTokens += tokens;
   }
 }
@@ -2,10 +2,15 @@ package cs224n.wordaligner;
 
 import cs224n.util.*;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * IBM 2 Model:
@@ -21,50 +26,138 @@ import java.util.List;
  * @author Dan Klein
  * @author Spence Green
  */
-public class IBM2Model implements WordAligner {
-  public static final String SEP = "<+>";
+public class IBM2Model implements BatchWordAligner, Configurable, SinglePrecision, ShardedEM.Model {
   public static final double INCREASE_RATIO = 1.0005;
 	
   public static final double EXTREMELY_LARGE = 99999999;
   public static final int MAX_ATTEMPTS = 100;
   public static final double MIN_CHANGE = .01;
 
+  public static final String LEGACY_MODEL_FILE = "IBM1Model_probTgivenS.ser";
+
   private static final long serialVersionUID = 1315751943476440515L;
 
   // I want to know the prob of an t word given an s word (or NULL)
-  private CounterMap<String, String> probTgivenS;
+  // Indexed by Vocabulary IDs; source ID Vocabulary.NULL_ID is the NULL word.
+  private TranslationTable probTgivenS;
+  private Vocabulary vocabulary;
+
+  // The E-step is split across this many worker threads (-threads)
+  private int numThreads = 1;
+  // IBM1Model's trained table is read from here (-ibm1File)
+  private String ibm1File = IBM1Model.MODEL_FILE;
+  // With -singlePrecision, probTgivenS and qA_IgivenINM store floats; expected counts
+  // are still doubles
+  private boolean singlePrecision = false;
+  // Every checkpointEvery iterations (-checkpointEvery; 0 = never) the model is saved to
+  // checkpointFile (-checkpointFile), and -resume continues training from there.
+  private int checkpointEvery = 0;
+  private String checkpointFile = "IBM2Model.checkpoint";
+  private boolean resume = false;
+  // Per-iteration timings, throughput and table sizes go to metricsFile (-metricsFile),
+  // as CSV, or as JSON Lines if it ends in .json
+  private String metricsFile;
+  private transient TrainingMetrics metrics;
+  // With -earlyStopSample N, training also stops once the log likelihood of a fixed random
+  // sample of N training pairs, scored after each M-step, improves by less than
+  // earlyStopTolerance (-earlyStopTolerance, relative) for earlyStopPatience
+  // (-earlyStopPatience) iterations in a row
+  private int earlyStopSample = 0;
+  private double earlyStopTolerance = INCREASE_RATIO - 1;
+  private int earlyStopPatience = 1;
+  // With shards, train() runs the E-step on worker processes too (see ShardedEM)
+  private transient ShardedEM shards;
+  private transient ForkJoinPool pool;
   
   // Note that we choose A_I = length of sentence (appending NULL) to the training set
-  private CounterMap<String, String> qA_IgivenINM;
+  // q(j | i, n, m), stored densely by (n, m) length bucket
+  private DistortionTable qA_IgivenINM;
 
 public IBM2Model() {
 	super();
 
-	probTgivenS = new CounterMap<String, String>();
-	qA_IgivenINM = new CounterMap<String, String>();
+	probTgivenS = new TranslationTable(1);
+	qA_IgivenINM = new DistortionTable();
   }
 
 
+  public void configure(Map<String, String> options) {
+    if (options.containsKey("-threads")) {
+      numThreads = Math.max(1, Integer.parseInt(options.get("-threads")));
+    }
+    if (options.containsKey("-ibm1File")) {
+      ibm1File = options.get("-ibm1File");
+    }
+    singlePrecision = options.containsKey("-singlePrecision");
+    if (options.containsKey("-checkpointEvery")) {
+      checkpointEvery = Math.max(0, Integer.parseInt(options.get("-checkpointEvery")));
+    }
+    if (options.containsKey("-checkpointFile")) {
+      checkpointFile = options.get("-checkpointFile");
+    }
+    resume = options.containsKey("-resume");
+    if (options.containsKey("-metricsFile")) {
+      metricsFile = options.get("-metricsFile");
+    }
+    if (options.containsKey("-earlyStopSample")) {
+      earlyStopSample = Integer.parseInt(options.get("-earlyStopSample"));
+    }
+    if (options.containsKey("-earlyStopTolerance")) {
+      earlyStopTolerance = Double.parseDouble(options.get("-earlyStopTolerance"));
+    }
+    if (options.containsKey("-earlyStopPatience")) {
+      earlyStopPatience = Integer.parseInt(options.get("-earlyStopPatience"));
+    }
+  }
+
   public Alignment align(SentencePair sentencePair) {
+    return align(sentencePair, qA_IgivenINM.base(sentencePair.getSourceIds().length, sentencePair.getTargetIds().length));
+  }
+
+  public List<Alignment> alignAll(List<SentencePair> sentencePairs) {
+    Alignment[] alignments = new Alignment[sentencePairs.size()];
+    int n = -1;
+    int m = -1;
+    int base = -1;
+    // Pairs come grouped by lengths, so each q bucket is looked up once
+    for (int k : WordAligners.lengthBucketOrder(sentencePairs)) {
+      SentencePair sentencePair = sentencePairs.get(k);
+      if (sentencePair.getSourceIds().length != n || sentencePair.getTargetIds().length != m) {
+        n = sentencePair.getSourceIds().length;
+        m = sentencePair.getTargetIds().length;
+        base = qA_IgivenINM.base(n, m);
+      }
+      alignments[k] = align(sentencePair, base);
+    }
+    return Arrays.asList(alignments);
+  }
+
+  // Aligns a pair whose (n, m) bucket of q starts at base
+  private Alignment align(SentencePair sentencePair, int base) {
     Alignment alignment = new Alignment();
-    List<String> targetWords = sentencePair.getTargetWords();
-    List<String> sourceWords = sentencePair.getSourceWords();
+    int[] targetIds = sentencePair.getTargetIds();
+    int[] sourceIds = sentencePair.getSourceIds();
+    int n = sourceIds.length;
+    int m = targetIds.length;
+
+    // No q was ever learned for these lengths, so every alignment has probability 0
+    if (base < 0) {
+      return alignment;
+    }
 
     // Let's see...
     // We probably want to estimate P(a_i = j | t, s)
     // And we'll probably want to pick the j that makes the largest P
 
-    for (int i = 0; i < targetWords.size(); i++) {
+    for (int i = 0; i < m; i++) {
       // Start by assuming the best is NULL_WORD, then improve on this
-	  String jStr = "" + sourceWords.size();
-	  String inmStr = "" + i + SEP + sourceWords.size() + SEP + targetWords.size();
-	  String targetWord = targetWords.get(i);
+	  int row = DistortionTable.index(base, i, 0, n);
+	  int targetWord = targetIds[i];
 	  
 	  int bestJ = -1; // null
-	  double bestAlignProb = qA_IgivenINM.getCount(jStr, inmStr) * probTgivenS.getCount(NULL_WORD, targetWord);
-      for (int j = 0; j < sourceWords.size(); j++) {
-    	jStr = "" + j;
-        double prob = qA_IgivenINM.getCount(jStr, inmStr) * probTgivenS.getCount(sourceWords.get(j), targetWords.get(i));
+	  double bestAlignProb = qA_IgivenINM.get(row + n) * probTgivenS.get(Vocabulary.NULL_ID, targetWord);
+      for (int j = 0; j < n; j++) {
+        double prob = qA_IgivenINM.get(row + j) * probTgivenS.get(sourceIds[j], targetWord);
 
         if (prob > bestAlignProb) {
 	      bestJ = j;
@@ -80,15 +173,45 @@ public IBM2Model() {
   }
   
   @SuppressWarnings("unchecked")
-private void initialize(List<SentencePair> trainingPairs) {
+public void initialize(Corpus trainingPairs) {
+	vocabulary = trainingPairs.getVocabulary();
+
+	// Going over the pairs once also completes a streaming corpus's vocabulary
+	// before the IBM1 table is mapped onto it
+	System.out.println("Selecting random starting probs for qA_IgivenINM");
+	if (singlePrecision)
+	  qA_IgivenINM = qA_IgivenINM.withSinglePrecision();
+    for (SentencePair pair : trainingPairs) {
+      int n = pair.getSourceIds().length;
+      int m = pair.getTargetIds().length;
+      if (qA_IgivenINM.base(n, m) >= 0) {
+        continue;
+      }
+      int base = qA_IgivenINM.addBucket(n, m);
+      for(int i = 0; i < m; i++){
+        for(int j = 0; j < n; j++) {
+        	qA_IgivenINM.set(DistortionTable.index(base, i, j, n), 1./(n + 1));//Math.random());
+        }
+        qA_IgivenINM.set(DistortionTable.index(base, i, n, n), 1./(n + 1));//Math.random()); // also deal with NULL
+      }
+    }
+
 	System.out.println("start loading IBM1 Model data");
 	long start = System.currentTimeMillis();
+	probTgivenS = new TranslationTable(vocabulary.sourceSize(), singlePrecision);
 	try {
-	  FileInputStream fileIn = new FileInputStream("IBM1Model_probTgivenS.ser");
-	  ObjectInputStream in = new ObjectInputStream(fileIn);
-	  probTgivenS = (CounterMap<String, String>)in.readObject();
-	  in.close();
-	  fileIn.close();
+	  if (new File(ibm1File).exists()) {
+	    probTgivenS = TranslationTableFile.read(new File(ibm1File), vocabulary, singlePrecision);
+	  } else {
+	    // Fall back to a model serialized by an older IBM1Model
+	    FileInputStream fileIn = new FileInputStream(LEGACY_MODEL_FILE);
+	    ObjectInputStream in = new ObjectInputStream(fileIn);
+	    probTgivenS = TranslationTable.fromCounterMap((CounterMap<String, String>)in.readObject(), vocabulary);
+	    in.close();
+	    fileIn.close();
+	    if (singlePrecision)
+	      probTgivenS = probTgivenS.withSinglePrecision();
+	  }
 
 	} catch (IOException e) {
 		e.printStackTrace();
@@ -97,212 +220,369 @@ private void initialize(List<SentencePair> trainingPairs) {
 	}
 	
 	System.out.println("Done loading IBM1 Model data in " + (System.currentTimeMillis() - start) + " ms");
-	
-	System.out.println("Selecting random starting probs for qA_IgivenINM");
-    for (SentencePair pair : trainingPairs) {
-      List<String> targetWords = pair.getTargetWords();
-      List<String> sourceWords = pair.getSourceWords();
-      for(int i = 0; i < targetWords.size(); i++){
-      	String inmStr = "" + i + SEP + sourceWords.size() + SEP + targetWords.size();
-        for(int j = 0; j < sourceWords.size(); j++) {
-        	String jStr = "" + j;
-        	qA_IgivenINM.setCount(jStr, inmStr, 1./(sourceWords.size() + 1));//Math.random());
-        }
-        qA_IgivenINM.setCount("" + sourceWords.size(), inmStr, 1./(sourceWords.size() + 1));//Math.random()); // also deal with NULL
-      }
-    }
+
+	// Give every co-occurring pair an entry, so the E-step can find a slot for it.
+	// Pairs the IBM1 model never saw keep probability 0.
+	for (SentencePair pair : trainingPairs) {
+	  for (int target : pair.getTargetIds()) {
+	    for (int source : pair.getSourceIds()) {
+	      probTgivenS.increment(source, target, 0);
+	    }
+	    probTgivenS.increment(Vocabulary.NULL_ID, target, 0);
+	  }
+	}
   }
 
-  public void train(List<SentencePair> trainingPairs) {
-	initialize(trainingPairs);
+  public void useSinglePrecision() {
+    singlePrecision = true;
+    probTgivenS = probTgivenS.withSinglePrecision();
+    qA_IgivenINM = qA_IgivenINM.withSinglePrecision();
+  }
 
-    // Now for the real meat of the algorithm
-    int attempts = 0;
-    double oldLLH = -1 * EXTREMELY_LARGE;
-    while (attempts < MAX_ATTEMPTS) {
-      double newLLH = subtrain(trainingPairs, attempts);
-      
-      System.out.println("Attempt #: " + attempts + " LLH: " + newLLH);
-      System.out.flush();
-      
-      // Note that oldLLH < 0, so our INCREASE_RATIO just needs to make newLLH less negative.
-      // If it is at least 5% less negative than before, we are making progress and can iterate.
-      if (newLLH > oldLLH / INCREASE_RATIO) {
-        oldLLH = newLLH;
-      } else {
-        break;
-      }
-      ++attempts;
-	}
+  public void setShards(ShardedEM shards) {
+    this.shards = shards;
   }
 
-  // Performs 1 iteration of the IBM 1 Model
-  // Returns the maximum change to the stored P's
-  private double subtrain(List<SentencePair> trainingPairs, int attempts) {
-	CounterMap<String, String> stAlignmentCounts = new CounterMap<String, String>();
-	CounterMap<String, String> jilmAlignmentCounts = new CounterMap<String, String>();
+  public TranslationTable getTranslationTable() {
+    return probTgivenS;
+  }
 
-	// For each SentencePair...
-    for(SentencePair pair : trainingPairs) {
-      List<String> targetWords = pair.getTargetWords();
-      List<String> sourceWords = pair.getSourceWords();
+  public DistortionTable getDistortionTable() {
+    return qA_IgivenINM;
+  }
 
-      for(int i = 0; i < targetWords.size(); ++i) {
-		String t = targetWords.get(i);
-		
-		String inmStr = "" + i + SEP + sourceWords.size() +SEP + targetWords.size();
+  public void setTables(TranslationTable translations, DistortionTable distortions) {
+    probTgivenS = singlePrecision ? translations.withSinglePrecision() : translations;
+    qA_IgivenINM = singlePrecision ? distortions.withSinglePrecision() : distortions;
+  }
 
-		// We need to find d_kij, which we'll find by computing the denominator, then numerator
-		// To do so, first compute the sum of q(j | i, n, m) * P(t_j | s_i) for all j
-		double sum = 0;
-		for (int j = 0; j < sourceWords.size(); ++j) {
-			String s = sourceWords.get(j);
-			String jStr = "" + j;
-			sum += qA_IgivenINM.getCount(jStr, inmStr) * probTgivenS.getCount(s, t);
-		}
-		// and NULL
-		sum += qA_IgivenINM.getCount("" + sourceWords.size(), inmStr) * probTgivenS.getCount(NULL_WORD, t);
-		
-		for (int j = 0; j < sourceWords.size(); ++j) {
-			String s = sourceWords.get(j);
-			String jStr = "" + j;
-			
-			double p = qA_IgivenINM.getCount(jStr, inmStr) * probTgivenS.getCount(s, t);
-			double d_kij = p / sum;
-			
-			if (Double.isNaN(d_kij))
-			  d_kij = 0;
+  public void train(List<SentencePair> trainingPairs) {
+    train(new ListCorpus(trainingPairs));
+  }
 
-			stAlignmentCounts.incrementCount(s, t, d_kij);
-			jilmAlignmentCounts.incrementCount(jStr, inmStr, d_kij);
-		}
+  public void train(Corpus trainingPairs) {
+	initialize(trainingPairs);
+	if (shards != null) {
+	  shards.initialize(this, vocabulary);
+	}
+	if (qA_IgivenINM.size() == 0) {
+	  return;
+	}
+	if (numThreads > 1) {
+	  pool = new ForkJoinPool(numThreads);
+	}
 
-		// Handle NULL
-		double p = qA_IgivenINM.getCount("" + sourceWords.size(), inmStr) * probTgivenS.getCount(NULL_WORD, t);
-		double d_kij = p / sum;
-		if (Double.isNaN(d_kij))
-		  d_kij = 0;
-		stAlignmentCounts.incrementCount(NULL_WORD, t, d_kij);
-		jilmAlignmentCounts.incrementCount("" + sourceWords.size(), inmStr, d_kij);
+    // Now for the real meat of the algorithm
+    int attempts = 0;
+    double oldLLH = Double.NEGATIVE_INFINITY;
+    if (resume && new File(checkpointFile).exists()) {
+      try {
+        Checkpoint checkpoint = Checkpoint.read(new File(checkpointFile), vocabulary);
+        // Entries and buckets of pairs the checkpointed run never saw keep their initial value
+        probTgivenS.copyValuesFrom(checkpoint.translations);
+        if (checkpoint.distortions != null) {
+          qA_IgivenINM.copyBucketsFrom(checkpoint.distortions);
+        }
+        attempts = checkpoint.iteration;
+        oldLLH = checkpoint.logLikelihood;
+        System.out.println("Resuming from " + checkpointFile + " at attempt #" + attempts);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
       }
     }
+    Checkpoint.Writer checkpoints = checkpointEvery > 0 ? new Checkpoint.Writer(new File(checkpointFile)) : null;
+    metrics = new TrainingMetrics("IBM2Model", metricsFile);
+    List<SentencePair> sample = null;
+    EarlyStopping earlyStopping = null;
+    if (earlyStopSample > 0) {
+      sample = EarlyStopping.sample(trainingPairs, earlyStopSample, 0);
+      earlyStopping = new EarlyStopping(earlyStopTolerance, earlyStopPatience);
+    }
+    try {
+      while (attempts < MAX_ATTEMPTS) {
+        double newLLH = subtrain(trainingPairs, attempts);
+        
+        System.out.println("Attempt #: " + attempts + " LLH: " + newLLH);
+        System.out.flush();
+        
+        // The first likelihood is for the IBM1 start; there is nothing to compare it against yet.
+        // Note that oldLLH < 0, so our INCREASE_RATIO just needs to make newLLH less negative.
+        // If it is at least 5% less negative than before, we are making progress and can iterate.
+        if (attempts == 0) {
+          oldLLH = newLLH;
+        } else if (newLLH > oldLLH / INCREASE_RATIO) {
+          oldLLH = newLLH;
+        } else {
+          break;
+        }
+        if (earlyStopping != null) {
+          double sampleLLH = logLikelihood(sample);
+          System.out.println("Attempt #: " + attempts + " sample LLH: " + sampleLLH);
+          if (earlyStopping.update(sampleLLH)) {
+            System.out.println("Stopping early: sample LLH stopped improving");
+            break;
+          }
+        }
+        ++attempts;
+        if (checkpoints != null && attempts % checkpointEvery == 0) {
+          checkpoints.save(attempts, oldLLH, probTgivenS, vocabulary, qA_IgivenINM);
+        }
+      }
+    } finally {
+      if (checkpoints != null) {
+        checkpoints.close();
+      }
+      metrics.close();
+      if (pool != null) {
+        pool.shutdown();
+        pool = null;
+      }
+    }
+  }
+
+  // Performs 1 iteration of the IBM 2 Model
+  // Returns the log likelihood of the training set under the parameters the iteration started with
+  private double subtrain(Corpus trainingPairs, int attempts) {
+	metrics.startIteration();
+	// Worker processes run their E-steps while this one runs its own
+	if (shards != null) {
+	  shards.broadcast(this, vocabulary, attempts);
+	}
+	ShardedEM.Counts counts = expectedCounts(trainingPairs);
+	if (shards != null) {
+	  addCounts(counts, shards.collect(this, vocabulary));
+	}
+	double[][] stAlignmentCounts = counts.translations;
+	double[] jilmAlignmentCounts = counts.distortions;
+	double llh = counts.logLikelihood;
+	metrics.endEStep(counts.numPairs, counts.numTokens);
 
     // Maximum change (this is an absolute value)
     double maxChange = 0;
 
     // Now renormalize the P
-    for (String source : probTgivenS.keySet()) {
+    for (int source = 0; source < probTgivenS.numSources(); source++) {
       // find the denominator
       // a sum over all target given this source
       double sum = 0;
-      for (String target : probTgivenS.getCounter(source).keySet()) {
-		sum += stAlignmentCounts.getCount(source, target);
+      for (int slot = 0; slot < probTgivenS.capacity(source); slot++) {
+		sum += stAlignmentCounts[source][slot];
 	  }
 
 	  // The numerator is just a single stAlignmentCount
-	  for (String target : probTgivenS.getCounter(source).keySet()) {
-        double newProb = stAlignmentCounts.getCount(source, target) / sum;
+	  for (int slot = 0; slot < probTgivenS.capacity(source); slot++) {
+	    if (probTgivenS.targetAt(source, slot) < 0) {
+	      continue;
+	    }
+        double newProb = stAlignmentCounts[source][slot] / sum;
         
         if (sum == 0) {
-          newProb = 1./probTgivenS.getCounter(source).keySet().size();
+          newProb = 1./probTgivenS.rowSize(source);
         }
         if (Double.isNaN(newProb))
           System.out.println("We have a problem with NaN in P");
 
         // Update the maximum change value
-        double change = Math.abs(probTgivenS.getCount(source, target) - newProb);
+        double change = Math.abs(probTgivenS.valueAt(source, slot) - newProb);
         if (change > maxChange) {
 	      maxChange = change;
 		}
 
         // Set the new probability!
-        probTgivenS.setCount(source, target, newProb);
+        probTgivenS.setValueAt(source, slot, newProb);
 	  }
 	}
     // Now renormalize the q, by finding c(inm), which means counting over all source indexes
-    for (String inmStr : qA_IgivenINM.getCounter("0").keySet()) {
-        // find the denominator
-        // a sum over all target given this source
-      double sum = 0;
-      for (String jStr : qA_IgivenINM.keySet()) {
-  		sum += jilmAlignmentCounts.getCount(jStr, inmStr);
-  	  }
-
-  	  // The numerator is just a single stAlignmentCount
-  	  for (String jStr : qA_IgivenINM.keySet()) {
-  		// Avoid storing a value for a mismatched jStr and inmStr
-  		// You also do not need to update if the value will end up being 0 anyway.
-  		if (jilmAlignmentCounts.getCount(jStr, inmStr) == 0) {
-  		  continue;
-  		}
-  		  
-        double newProb = jilmAlignmentCounts.getCount(jStr, inmStr) / sum;
-        if (sum == 0)
-        	newProb = 1./qA_IgivenINM.getCounter(jStr).keySet().size();
-        if (Double.isNaN(newProb)) {
-          System.out.println("NaN problem");
-        }
-
-        // Update the maximum change value (except not for q)
-        double change = Math.abs(qA_IgivenINM.getCount(jStr, inmStr) - newProb);
-        if (change > maxChange) {
-          //maxChange = change;
-  		}
-        
-        if (Math.random() < .00001)
-          System.out.println("New Q: " + newProb + " Old Q: " + qA_IgivenINM.getCount(jStr, inmStr) + " " + jStr + "," + inmStr + " " + sum);
+    // (and NULL) of each (i, n, m) context
+    double maxQChange = qA_IgivenINM.normalize(jilmAlignmentCounts);
 
-        // Set the new probability!
-        qA_IgivenINM.setCount(jStr, inmStr, newProb);
-  	  }
-  	}
-
-    System.out.println("Attempt #" + attempts + " Max change: " + maxChange);
+    System.out.println("Attempt #" + attempts + " Max change: " + maxChange + " Max q change: " + maxQChange);
     
     // Debug printout that is really only meaningful for French -> English
-    System.out.println(probTgivenS.getCount("le", "the"));
+    System.out.println(probTgivenS.get(vocabulary.getSourceId("le"), vocabulary.getTargetId("the")));
     
     // Debug checking how likely the 1st word is still the 1st word in size-7 source and target sentences
-    System.out.println(qA_IgivenINM.getCount("0", "0" + SEP + "7" + SEP + "7"));
+    System.out.println(qA_IgivenINM.get(0, 0, 7, 7));
+    metrics.endIteration(attempts, llh, probTgivenS.size(), qA_IgivenINM.size());
     
     //return maxChange;
-    return logLikelihood(trainingPairs);
+    return llh;
   }
   
-  // Compute the log likelihood of the training set given our current q and p parameters
-  private double logLikelihood(List<SentencePair> trainingPairs) {
-    // Log Likelihood = SUM[all pairs a]
-	  
-	double llh = 0;
-	  
-	for (SentencePair sentencePair : trainingPairs) {
-      List<String> targetWords = sentencePair.getTargetWords();
-      List<String> sourceWords = sentencePair.getSourceWords();
-
-      // Let's see...
-      // We probably want to estimate P(a_i = j | t, s)
-      // And we'll probably want to pick the j that makes the largest P
-
-      for (int i = 0; i < targetWords.size(); i++) {
-        // Start by assuming the best is NULL_WORD, then improve on this
-	    String jStr = "" + sourceWords.size();
-	    String inmStr = "" + i + SEP + sourceWords.size() + SEP + targetWords.size();
-	    String targetWord = targetWords.get(i);
-	  
-	    double bestAlignProb = qA_IgivenINM.getCount(jStr, inmStr) * probTgivenS.getCount(NULL_WORD, targetWord);
-        for (int j = 0; j < sourceWords.size(); j++) {
-          jStr = "" + j;
-          double prob = qA_IgivenINM.getCount(jStr, inmStr) * probTgivenS.getCount(sourceWords.get(j), targetWords.get(i));
-
-          if (prob > bestAlignProb) {
-	        bestAlignProb = prob;
-		  }
+  public ShardedEM.Counts expectedCounts(Corpus trainingPairs) {
+	// Each worker fills its own translation and distortion counts from the same
+	// contiguous shard of every batch of the corpus. The workers' counts are summed
+	// in order, so runs with the same thread count give the same model.
+	boolean ownPool = pool == null && numThreads > 1;
+	if (ownPool) {
+	  pool = new ForkJoinPool(numThreads);
+	}
+	final List<ExpectedCounts> partialCounts = new ArrayList<ExpectedCounts>(numThreads);
+	for (int k = 0; k < numThreads; k++) {
+	  partialCounts.add(new ExpectedCounts(probTgivenS.newAccumulator(), qA_IgivenINM.newAccumulator()));
+	}
+	try {
+	  Shards.runBatched(pool, trainingPairs, Shards.DEFAULT_BATCH_SIZE, numThreads,
+	      new Shards.BatchTask<SentencePair>() {
+	    public void call(int shard, List<SentencePair> pairs) {
+	      accumulateCounts(pairs, partialCounts.get(shard));
 	    }
-        
-        llh += Math.log(bestAlignProb);
+	  });
+	} finally {
+	  if (ownPool) {
+	    pool.shutdown();
+	    pool = null;
 	  }
 	}
-    
-	return llh;
+	ShardedEM.Counts counts = new ShardedEM.Counts(partialCounts.get(0).stAlignmentCounts,
+	    partialCounts.get(0).jilmAlignmentCounts);
+	for (int k = 0; k < partialCounts.size(); k++) {
+	  ExpectedCounts partial = partialCounts.get(k);
+	  if (k > 0) {
+	    TranslationTable.addCounts(counts.translations, partial.stAlignmentCounts);
+	    for (int index = 0; index < counts.distortions.length; index++) {
+	      counts.distortions[index] += partial.jilmAlignmentCounts[index];
+	    }
+	  }
+	  counts.logLikelihood += partial.logLikelihood;
+	  counts.numPairs += partial.numPairs;
+	  counts.numTokens += partial.numTokens;
+	}
+	return counts;
+  }
+
+  // Adds the counts of the worker processes to this one's
+  private static void addCounts(ShardedEM.Counts counts, ShardedEM.Counts shardCounts) {
+	TranslationTable.addCounts(counts.translations, shardCounts.translations);
+	for (int index = 0; index < counts.distortions.length; index++) {
+	  counts.distortions[index] += shardCounts.distortions[index];
+	}
+	counts.logLikelihood += shardCounts.logLikelihood;
+	counts.numPairs += shardCounts.numPairs;
+	counts.numTokens += shardCounts.numTokens;
+  }
+
+  // Log likelihood of the given pairs under the current q and p parameters, as the
+  // E-step measures it
+  double logLikelihood(List<SentencePair> pairs) {
+    double llh = 0;
+    for (SentencePair pair : pairs) {
+      int[] targetIds = pair.getTargetIds();
+      int[] sourceIds = pair.getSourceIds();
+      int n = sourceIds.length;
+      int base = qA_IgivenINM.base(n, targetIds.length);
+      if (base < 0)
+        continue;
+      for (int i = 0; i < targetIds.length; i++) {
+        int row = DistortionTable.index(base, i, 0, n);
+        double sum = qA_IgivenINM.get(row + n) * probTgivenS.get(Vocabulary.NULL_ID, targetIds[i]);
+        for (int j = 0; j < n; j++) {
+          sum += qA_IgivenINM.get(row + j) * probTgivenS.get(sourceIds[j], targetIds[i]);
+        }
+        if (sum > 0)
+          llh += Math.log(sum);
+      }
+    }
+    return llh;
+  }
+
+  // Runs the E-step alone over the given pairs on the calling thread, after initialize(),
+  // and returns their log likelihood. The counts are thrown away. Used by the benchmarks.
+  double expectationStep(List<SentencePair> pairs) {
+    ExpectedCounts counts = new ExpectedCounts(probTgivenS.newAccumulator(), qA_IgivenINM.newAccumulator());
+    accumulateCounts(pairs, counts);
+    return counts.logLikelihood;
+  }
+
+  // Translation and distortion counts, and log likelihood, collected by one E-step worker
+  private static class ExpectedCounts {
+    // Laid out slot-for-slot like probTgivenS
+    final double[][] stAlignmentCounts;
+    // Laid out cell-for-cell like qA_IgivenINM
+    final double[] jilmAlignmentCounts;
+    double logLikelihood;
+    int numPairs;
+    long numTokens;
+
+    ExpectedCounts(double[][] stAlignmentCounts, double[] jilmAlignmentCounts) {
+      this.stAlignmentCounts = stAlignmentCounts;
+      this.jilmAlignmentCounts = jilmAlignmentCounts;
+    }
+  }
+
+  // E-step: adds the expected translation and distortion counts of the given pairs,
+  // and their log likelihood under the current q and p parameters
+  private void accumulateCounts(List<SentencePair> trainingPairs, ExpectedCounts counts) {
+	double[][] stAlignmentCounts = counts.stAlignmentCounts;
+	double[] jilmAlignmentCounts = counts.jilmAlignmentCounts;
+	double llh = 0;
+	long tokens = 0;
+	int[] slots = new int[0];
+
+	// For each SentencePair...
+    for(SentencePair pair : trainingPairs) {
+      int[] targetIds = pair.getTargetIds();
+      int[] sourceIds = pair.getSourceIds();
+      tokens += targetIds.length + sourceIds.length;
+      int n = sourceIds.length;
+      int m = targetIds.length;
+      int base = qA_IgivenINM.base(n, m);
+      if (slots.length < n + 1) {
+        slots = new int[n + 1];
+      }
+
+      for(int i = 0; i < m; ++i) {
+		int t = targetIds[i];
+		
+		// q(j | i, n, m) lives at row + j, and q(NULL | i, n, m) at row + n
+		int row = DistortionTable.index(base, i, 0, n);
+
+		// We need to find d_kij, which we'll find by computing the denominator, then numerator
+		// To do so, first compute the sum of q(j | i, n, m) * P(t_j | s_i) for all j,
+		// remembering where each P entry lives (NULL's goes last).
+		// Missing entries have no slot and count as 0.
+		double sum = 0;
+		for (int j = 0; j < n; ++j) {
+			slots[j] = probTgivenS.find(sourceIds[j], t);
+			if (slots[j] >= 0)
+			  sum += qA_IgivenINM.get(row + j) * probTgivenS.valueAt(sourceIds[j], slots[j]);
+		}
+		// and NULL
+		int nullSlot = probTgivenS.find(Vocabulary.NULL_ID, t);
+		if (nullSlot >= 0)
+		  sum += qA_IgivenINM.get(row + n) * probTgivenS.valueAt(Vocabulary.NULL_ID, nullSlot);
+		
+		for (int j = 0; j < n; ++j) {
+			if (slots[j] < 0)
+			  continue;
+			double p = qA_IgivenINM.get(row + j) * probTgivenS.valueAt(sourceIds[j], slots[j]);
+			double d_kij = p / sum;
+			
+			if (Double.isNaN(d_kij))
+			  d_kij = 0;
+
+			stAlignmentCounts[sourceIds[j]][slots[j]] += d_kij;
+			jilmAlignmentCounts[row + j] += d_kij;
+		}
+
+		// Handle NULL
+		if (nullSlot >= 0) {
+		  double p = qA_IgivenINM.get(row + n) * probTgivenS.valueAt(Vocabulary.NULL_ID, nullSlot);
+		  double d_kij = p / sum;
+		  if (Double.isNaN(d_kij))
+		    d_kij = 0;
+		  stAlignmentCounts[Vocabulary.NULL_ID][nullSlot] += d_kij;
+		  jilmAlignmentCounts[row + n] += d_kij;
+		}
+
+		// sum is P(t_i | s); words the model gives no probability at all are left out,
+		// just as they contribute no counts
+		if (sum > 0)
+		  llh += Math.log(sum);
+      }
+    }
+    counts.logLikelihood += llh;
+    counts.numPairs += trainingPairs.size();
+    counts.numTokens += tokens;
   }
 }
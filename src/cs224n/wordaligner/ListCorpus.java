@@ -0,0 +1,25 @@
+package cs224n.wordaligner;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A Corpus backed by sentence pairs already in memory.
+ */
+public class ListCorpus implements Corpus {
+  private final List<SentencePair> pairs;
+  private final Vocabulary vocabulary;
+
+  public ListCorpus(List<SentencePair> pairs) {
+    this.pairs = pairs;
+    this.vocabulary = pairs.isEmpty() ? new Vocabulary() : pairs.get(0).getVocabulary();
+  }
+
+  public Iterator<SentencePair> iterator() {
+    return pairs.iterator();
+  }
+
+  public Vocabulary getVocabulary() {
+    return vocabulary;
+  }
+}
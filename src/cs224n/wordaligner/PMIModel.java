@@ -2,6 +2,7 @@ package cs224n.wordaligner;
 
 import cs224n.util.*;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -14,34 +15,57 @@ import java.util.List;
  * @author Dan Klein
  * @author Spence Green
  */
-public class PMIModel implements WordAligner {
+public class PMIModel implements BatchWordAligner {
 
   private static final long serialVersionUID = 1315751943476440515L;
   
   // TODO: Use arrays or Counters for collecting sufficient statistics
   // from the training data.
-  private CounterMap<String,String> sourceTargetCounts;
-  private Counter<String> sourceCounts;
-  private Counter<String> targetCounts;
+  private DoubleCounterMap<String,String> sourceTargetCounts;
+  private DoubleCounter<String> sourceCounts;
+  private DoubleCounter<String> targetCounts;
  // private long  numberOfTrains;
 
   public Alignment align(SentencePair sentencePair) {
+    return align(sentencePair, new double[sentencePair.getSourceWords().size()]);
+  }
+
+  public List<Alignment> alignAll(List<SentencePair> sentencePairs) {
+    Alignment[] alignments = new Alignment[sentencePairs.size()];
+    // Pairs come grouped by lengths, so the scratch array only grows a few times
+    double[] sourceCountScratch = new double[0];
+    for (int k : WordAligners.lengthBucketOrder(sentencePairs)) {
+      SentencePair sentencePair = sentencePairs.get(k);
+      if (sourceCountScratch.length < sentencePair.getSourceWords().size()) {
+        sourceCountScratch = new double[sentencePair.getSourceWords().size()];
+      }
+      alignments[k] = align(sentencePair, sourceCountScratch);
+    }
+    return Arrays.asList(alignments);
+  }
+
+  // sourceCountScratch must hold at least one double per source word
+  private Alignment align(SentencePair sentencePair, double[] sourceCountScratch) {
     // Placeholder code below. 
     // TODO Implement an inference algorithm for Eq.1 in the assignment
     // handout to predict alignments based on the counts you collected with train().
     Alignment alignment = new Alignment();
     int numSourceWords = sentencePair.getSourceWords().size();
     int numTargetWords = sentencePair.getTargetWords().size();
+    // The marginal counts only depend on the word, so look each one up once
+    for(int srcIndex = 0; srcIndex < numSourceWords; srcIndex++){
+      sourceCountScratch[srcIndex] = sourceCounts.getCount(sentencePair.getSourceWords().get(srcIndex));
+    }
     sentencePair.sourceWords.add(NULL_WORD);
     for (int targetIndex = 0; targetIndex < numTargetWords; targetIndex++) {
       String targetWord = sentencePair.getTargetWords().get(targetIndex);
+      double targetCount = targetCounts.getCount(targetWord);
       double maxProb = -1;
       int bestIndex = -1;
       for(int srcIndex = 0; srcIndex < numSourceWords;srcIndex++){
     	  String srcWord = sentencePair.getSourceWords().get(srcIndex);
     	  double coOccurence = sourceTargetCounts.getCount(srcWord, targetWord);
-    	  double sourceCount = sourceCounts.getCount(srcWord);
-    	  double targetCount = targetCounts.getCount(targetWord);
+    	  double sourceCount = sourceCountScratch[srcIndex];
     	  double prob;
     	  if(sourceCount == 0 || targetCount==0){
     		  prob = 0;
@@ -61,9 +85,13 @@ public class PMIModel implements WordAligner {
   }
 
   public void train(List<SentencePair> trainingPairs) {
-    sourceTargetCounts = new CounterMap<String,String>();
-    sourceCounts = new Counter<String>();
-    targetCounts = new Counter<String>();
+    train(new ListCorpus(trainingPairs));
+  }
+
+  public void train(Corpus trainingPairs) {
+    sourceTargetCounts = new DoubleCounterMap<String,String>();
+    sourceCounts = new DoubleCounter<String>();
+    targetCounts = new DoubleCounter<String>();
    // numberOfTrains = trainingPairs.size();
     for(SentencePair pair : trainingPairs){
       List<String> targetWords = pair.getTargetWords();
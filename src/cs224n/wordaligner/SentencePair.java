@@ -6,6 +6,9 @@ import java.util.List;
  * A holder for a pair of sentences, each a list of strings.  Sentences in
  * the test sets have integer IDs, as well, which are used to retreive the
  * gold standard alignments for those sentences.
+ *
+ * Each sentence is also available as an array of word IDs from the shared
+ * Vocabulary, so that models can index their tables without hashing Strings.
  * 
  * @author Dan Klein
  * @author Spence Green
@@ -15,6 +18,9 @@ public class SentencePair {
   String sourceFile;
   List<String> targetWords;
   List<String> sourceWords;
+  int[] targetIds;
+  int[] sourceIds;
+  Vocabulary vocabulary;
 
   public int getSentenceID() {
     return sentenceID;
@@ -32,6 +38,18 @@ public class SentencePair {
     return sourceWords;
   }
 
+  public int[] getTargetIds() {
+    return targetIds;
+  }
+
+  public int[] getSourceIds() {
+    return sourceIds;
+  }
+
+  public Vocabulary getVocabulary() {
+    return vocabulary;
+  }
+
   public String toString() {
     StringBuilder sb = new StringBuilder();
     for (int englishPosition = 0; englishPosition < targetWords.size(); englishPosition++) {
@@ -53,10 +71,29 @@ public class SentencePair {
     return sb.toString();
   }
 
-  public SentencePair(int sentenceID, String sourceFile, List<String> targetWords, List<String> sourceWords) {
+  public SentencePair(int sentenceID, String sourceFile, List<String> targetWords, List<String> sourceWords,
+                      Vocabulary vocabulary) {
+    this.sentenceID = sentenceID;
+    this.sourceFile = sourceFile;
+    this.targetWords = targetWords;
+    this.sourceWords = sourceWords;
+    this.vocabulary = vocabulary;
+    this.targetIds = vocabulary.indexTargetWords(targetWords);
+    this.sourceIds = vocabulary.indexSourceWords(sourceWords);
+  }
+
+  /**
+   * Builds a pair whose words were already mapped to IDs of the given
+   * vocabulary, e.g. by a corpus cache.
+   */
+  public SentencePair(int sentenceID, String sourceFile, List<String> targetWords, List<String> sourceWords,
+                      int[] targetIds, int[] sourceIds, Vocabulary vocabulary) {
     this.sentenceID = sentenceID;
     this.sourceFile = sourceFile;
     this.targetWords = targetWords;
     this.sourceWords = sourceWords;
+    this.vocabulary = vocabulary;
+    this.targetIds = targetIds;
+    this.sourceIds = sourceIds;
   }
 }
\ No newline at end of file
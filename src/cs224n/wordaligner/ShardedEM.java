@@ -0,0 +1,413 @@
+package cs224n.wordaligner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the E-step of an EM model in worker processes on the same machine,
+ * so that no one JVM has to hold the whole corpus.  Each worker loads its
+ * own shard of the training pairs and keeps only the words it sees; the
+ * coordinator, which holds the full tables, runs the M-step and the
+ * convergence check as usual.
+ *
+ * The coordinator and each worker talk over a loopback socket, and tables
+ * travel through files in a shared directory, as checkpoints (see
+ * Checkpoint).  Every iteration the coordinator writes its tables once;
+ * each worker reads the entries for its own words, runs the E-step on its
+ * shard and writes back its expected counts, which the coordinator adds
+ * to its own, in shard order.  Before the first iteration each worker
+ * initializes the model on its shard and sends its words and tables, so
+ * the coordinator's tables have an entry for every pair that co-occurs in
+ * any shard.
+ *
+ * Coordinator usage:
+ * <pre>
+ *   ShardedEM shards = new ShardedEM(numShards, workDir);
+ *   shards.start(commands);   // commands to launch the workers, which call serve()
+ *   model.setShards(shards);
+ *   model.train(localPairs);  // pairs the coordinator holds itself, maybe none
+ *   shards.close();
+ * </pre>
+ */
+public class ShardedEM {
+
+  /**
+   * Implemented by EM models that can train with ShardedEM.
+   */
+  public interface Model {
+
+    /**
+     * Sets up the model's tables for the given pairs, as the first step of
+     * train() would.
+     */
+    public void initialize(Corpus trainingPairs);
+
+    public TranslationTable getTranslationTable();
+
+    /**
+     * Returns the distortion table, or null if the model has none.
+     */
+    public DistortionTable getDistortionTable();
+
+    /**
+     * Replaces the model's tables, e.g. with the ones a coordinator sent.
+     */
+    public void setTables(TranslationTable translations, DistortionTable distortions);
+
+    /**
+     * E-step: the expected counts of the given pairs under the current
+     * tables, laid out like them.
+     */
+    public Counts expectedCounts(Corpus trainingPairs);
+
+    /**
+     * Makes train() run its E-steps on the given shards too, as their
+     * coordinator.  Null trains in this process alone.
+     */
+    public void setShards(ShardedEM shards);
+  }
+
+  /**
+   * Expected counts and log likelihood of an E-step.
+   */
+  public static class Counts {
+    // Laid out slot-for-slot like the translation table
+    public final double[][] translations;
+    // Laid out cell-for-cell like the distortion table, or null
+    public final double[] distortions;
+    public double logLikelihood;
+    public int numPairs;
+    public long numTokens;
+
+    public Counts(double[][] translations, double[] distortions) {
+      this.translations = translations;
+      this.distortions = distortions;
+    }
+  }
+
+  // Commands from the coordinator
+  private static final int INITIALIZE = 1;
+  private static final int ITERATE = 2;
+  private static final int STOP = 3;
+
+  // How long start() waits for the workers to connect
+  private static final int CONNECT_TIMEOUT_MS = 5 * 60 * 1000;
+
+  private final int numShards;
+  private final File workDir;
+  private final boolean deleteWorkDir;
+  private final ServerSocket server;
+  private final List<Process> processes = new ArrayList<Process>();
+  private final Socket[] sockets;
+  private final DataInputStream[] in;
+  private final DataOutputStream[] out;
+
+  /**
+   * Listens for numShards workers on a loopback port.  Tables are exchanged
+   * through files in workDir, or in a temporary directory if it is null.
+   */
+  public ShardedEM(int numShards, File workDir) throws IOException {
+    this.numShards = numShards;
+    this.deleteWorkDir = workDir == null;
+    this.workDir = workDir != null ? workDir : Files.createTempDirectory("shardedEM").toFile();
+    this.workDir.mkdirs();
+    server = new ServerSocket(0, numShards, InetAddress.getLoopbackAddress());
+    sockets = new Socket[numShards];
+    in = new DataInputStream[numShards];
+    out = new DataOutputStream[numShards];
+  }
+
+  /**
+   * The port workers should connect to.
+   */
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * Launches one worker process per command, which should end up calling
+   * serve() for its shard, and waits until every shard has connected.
+   * Workers share this process's console and working directory.
+   */
+  public void start(List<List<String>> commands) throws IOException {
+    for (List<String> command : commands) {
+      processes.add(new ProcessBuilder(command).inheritIO().start());
+    }
+    server.setSoTimeout(CONNECT_TIMEOUT_MS);
+    for (int k = 0; k < numShards; k++) {
+      Socket socket;
+      try {
+        socket = server.accept();
+      } catch (SocketTimeoutException e) {
+        throw new IOException("Only " + k + " of " + numShards + " workers connected", e);
+      }
+      DataInputStream socketIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream socketOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      int shard = socketIn.readInt();
+      if (shard < 0 || shard >= numShards || sockets[shard] != null) {
+        socket.close();
+        throw new IOException("Unexpected worker for shard " + shard);
+      }
+      sockets[shard] = socket;
+      in[shard] = socketIn;
+      out[shard] = socketOut;
+      socketOut.writeUTF(workDir.getAbsolutePath());
+      socketOut.flush();
+    }
+  }
+
+  /**
+   * Has every worker initialize the model on its shard, then adds the
+   * workers' words to the vocabulary and their entries to the model's
+   * tables.  Entries the model already has keep their values.
+   */
+  public void initialize(Model model, Vocabulary vocabulary) {
+    try {
+      sendAll(INITIALIZE);
+      for (int shard = 0; shard < numShards; shard++) {
+        for (int k = in[shard].readInt(); k > 0; k--)
+          vocabulary.addSourceWord(in[shard].readUTF());
+        for (int k = in[shard].readInt(); k > 0; k--)
+          vocabulary.addTargetWord(in[shard].readUTF());
+        Checkpoint tables = Checkpoint.read(shardFile(shard, "init"), vocabulary);
+        addEntries(model.getTranslationTable(), tables.translations);
+        if (model.getDistortionTable() != null)
+          addBuckets(model.getDistortionTable(), tables.distortions);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Sends the model's tables to the workers and starts their E-steps.
+   * Call collect() for the counts.
+   */
+  public void broadcast(Model model, Vocabulary vocabulary, int iteration) {
+    try {
+      Checkpoint.write(new File(workDir, "model.bin"), iteration, 0, model.getTranslationTable(), vocabulary,
+          model.getDistortionTable());
+      sendAll(ITERATE);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Waits for the workers' E-steps and returns the sum of their counts,
+   * laid out like the model's tables.
+   */
+  public Counts collect(Model model, Vocabulary vocabulary) {
+    TranslationTable translations = model.getTranslationTable();
+    DistortionTable distortions = model.getDistortionTable();
+    Counts total = new Counts(translations.newAccumulator(),
+        distortions != null ? distortions.newAccumulator() : null);
+    try {
+      for (int shard = 0; shard < numShards; shard++) {
+        total.logLikelihood += in[shard].readDouble();
+        total.numPairs += in[shard].readInt();
+        total.numTokens += in[shard].readLong();
+        Checkpoint counts = Checkpoint.read(shardFile(shard, "counts"), vocabulary);
+        addCounts(total.translations, translations, counts.translations);
+        if (distortions != null)
+          addCounts(total.distortions, distortions, counts.distortions);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return total;
+  }
+
+  /**
+   * Stops the workers and removes the exchanged files.
+   */
+  public void close() {
+    for (int shard = 0; shard < numShards; shard++) {
+      try {
+        if (out[shard] != null) {
+          out[shard].writeInt(STOP);
+          out[shard].flush();
+        }
+      } catch (IOException e) {
+        // the worker is gone already
+      }
+    }
+    // Workers that never connected see the server close and exit
+    try {
+      for (Socket socket : sockets) {
+        if (socket != null)
+          socket.close();
+      }
+      server.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    for (Process process : processes) {
+      try {
+        process.waitFor();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        process.destroy();
+      }
+    }
+    for (int shard = 0; shard < numShards; shard++) {
+      shardFile(shard, "init").delete();
+      shardFile(shard, "counts").delete();
+    }
+    new File(workDir, "model.bin").delete();
+    if (deleteWorkDir)
+      workDir.delete();
+  }
+
+  private void sendAll(int command) throws IOException {
+    for (int shard = 0; shard < numShards; shard++) {
+      out[shard].writeInt(command);
+      out[shard].flush();
+    }
+  }
+
+  private File shardFile(int shard, String kind) {
+    return new File(workDir, "shard-" + shard + "." + kind);
+  }
+
+  /**
+   * Worker side: connects to the coordinator on the given local port and
+   * answers its commands for one shard of the training pairs until it
+   * says stop.
+   */
+  public static void serve(Model model, Corpus trainingPairs, int port, int shard) throws IOException {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      out.writeInt(shard);
+      out.flush();
+      File workDir = new File(in.readUTF());
+      File countsFile = new File(workDir, "shard-" + shard + ".counts");
+      Vocabulary vocabulary = trainingPairs.getVocabulary();
+
+      for (int command = in.readInt(); command != STOP; command = in.readInt()) {
+        if (command == INITIALIZE) {
+          model.initialize(trainingPairs);
+          Checkpoint.write(new File(workDir, "shard-" + shard + ".init"), 0, 0, model.getTranslationTable(),
+              vocabulary, model.getDistortionTable());
+          // NULL is in every vocabulary already
+          out.writeInt(vocabulary.sourceSize() - 1);
+          for (int source = 1; source < vocabulary.sourceSize(); source++)
+            out.writeUTF(vocabulary.getSourceWord(source));
+          out.writeInt(vocabulary.targetSize());
+          for (int target = 0; target < vocabulary.targetSize(); target++)
+            out.writeUTF(vocabulary.getTargetWord(target));
+        } else if (command == ITERATE) {
+          // Only the entries for this shard's words are loaded
+          Checkpoint tables = Checkpoint.read(new File(workDir, "model.bin"), vocabulary);
+          model.setTables(tables.translations, tables.distortions);
+          Counts counts = model.expectedCounts(trainingPairs);
+          Checkpoint.write(countsFile, 0, counts.logLikelihood,
+              countTable(model.getTranslationTable(), counts.translations), vocabulary,
+              model.getDistortionTable() != null ? countTable(model.getDistortionTable(), counts.distortions) : null);
+          out.writeDouble(counts.logLikelihood);
+          out.writeInt(counts.numPairs);
+          out.writeLong(counts.numTokens);
+        } else {
+          throw new IOException("Unknown command " + command);
+        }
+        out.flush();
+      }
+    } finally {
+      socket.close();
+    }
+  }
+
+  // The counts as a double-precision table with the entries of layout
+  private static TranslationTable countTable(TranslationTable layout, double[][] counts) {
+    TranslationTable table = new TranslationTable(layout.numSources());
+    for (int source = 0; source < layout.numSources(); source++) {
+      for (int slot = 0; slot < layout.capacity(source); slot++) {
+        int target = layout.targetAt(source, slot);
+        if (target >= 0)
+          table.set(source, target, counts[source][slot]);
+      }
+    }
+    return table;
+  }
+
+  // The counts as a double-precision table with the buckets of layout
+  private static DistortionTable countTable(DistortionTable layout, double[] counts) {
+    DistortionTable table = new DistortionTable();
+    for (int n = 0; n < layout.sourceLengthBound(); n++) {
+      for (int m = 0; m < layout.targetLengthBound(n); m++) {
+        int base = layout.base(n, m);
+        if (base < 0)
+          continue;
+        int newBase = table.addBucket(n, m);
+        for (int cell = 0; cell < m * (n + 1); cell++)
+          table.set(newBase + cell, counts[base + cell]);
+      }
+    }
+    return table;
+  }
+
+  // Adds the entries of from that table lacks
+  private static void addEntries(TranslationTable table, TranslationTable from) {
+    for (int source = 0; source < from.numSources(); source++) {
+      for (int slot = 0; slot < from.capacity(source); slot++) {
+        int target = from.targetAt(source, slot);
+        if (target >= 0 && table.find(source, target) < 0)
+          table.set(source, target, from.valueAt(source, slot));
+      }
+    }
+  }
+
+  // Adds the buckets of from that table lacks
+  private static void addBuckets(DistortionTable table, DistortionTable from) {
+    for (int n = 0; n < from.sourceLengthBound(); n++) {
+      for (int m = 0; m < from.targetLengthBound(n); m++) {
+        int base = from.base(n, m);
+        if (base < 0 || table.base(n, m) >= 0)
+          continue;
+        int newBase = table.addBucket(n, m);
+        for (int cell = 0; cell < m * (n + 1); cell++)
+          table.set(newBase + cell, from.get(base + cell));
+      }
+    }
+  }
+
+  // Adds a shard's counts to totals laid out like table. Entries table lacks are dropped.
+  private static void addCounts(double[][] totals, TranslationTable table, TranslationTable counts) {
+    for (int source = 0; source < counts.numSources(); source++) {
+      for (int slot = 0; slot < counts.capacity(source); slot++) {
+        int target = counts.targetAt(source, slot);
+        if (target < 0)
+          continue;
+        int tableSlot = table.find(source, target);
+        if (tableSlot >= 0)
+          totals[source][tableSlot] += counts.valueAt(source, slot);
+      }
+    }
+  }
+
+  private static void addCounts(double[] totals, DistortionTable table, DistortionTable counts) {
+    for (int n = 0; n < counts.sourceLengthBound(); n++) {
+      for (int m = 0; m < counts.targetLengthBound(n); m++) {
+        int base = counts.base(n, m);
+        int tableBase = table.base(n, m);
+        if (base < 0 || tableBase < 0)
+          continue;
+        for (int cell = 0; cell < m * (n + 1); cell++)
+          totals[tableBase + cell] += counts.get(base + cell);
+      }
+    }
+  }
+}
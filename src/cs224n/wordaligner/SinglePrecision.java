@@ -0,0 +1,18 @@
+package cs224n.wordaligner;
+
+/**
+ * Implemented by aligners that can keep their probability tables in
+ * single precision, halving the tables' memory.  A model trained with
+ * -singlePrecision stores floats throughout training; useSinglePrecision()
+ * converts a model trained in double precision, which is how
+ * WordAlignmentTester -compareSinglePrecision measures what the rounding
+ * costs in AER.
+ */
+public interface SinglePrecision {
+
+  /**
+   * Converts the model's probability tables to single precision.  Does
+   * nothing if they already are.
+   */
+  public void useSinglePrecision();
+}
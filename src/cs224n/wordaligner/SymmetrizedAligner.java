@@ -0,0 +1,282 @@
+package cs224n.wordaligner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains a model in both directions at once, target given source and
+ * source given target, and combines their alignments (Och and Ney, 2003;
+ * Koehn et al., 2003).  Both directions read the same corpus: the reverse
+ * one sees each pair with its sides swapped, remapped to a reversed
+ * Vocabulary on the fly.  Each direction trains on its own thread with
+ * half of -threads.
+ *
+ * Options:
+ * <pre>
+ *   -baseModel   model to train in each direction (default cs224n.wordaligner.IBM1Model)
+ *   -symmetrize  intersect, union or grow-diag-final (default)
+ * </pre>
+ * The other options go to both models.  File options of the reverse model
+ * (-ibm1File, -checkpointFile, -metricsFile) get ".reverse" in their names,
+ * so the directions do not overwrite each other's files; as with a single
+ * model, train IBM1Model first to give the others a reverse IBM1 table.
+ *
+ * Since the models see every pair, align() should not modify them; the
+ * EM models do not.
+ */
+public class SymmetrizedAligner implements BatchWordAligner, Configurable {
+
+  private static final long serialVersionUID = 1315751943476440515L;
+
+  public static final String INTERSECT = "intersect";
+  public static final String UNION = "union";
+  public static final String GROW_DIAG_FINAL = "grow-diag-final";
+
+  private String heuristic = GROW_DIAG_FINAL;
+  private WordAligner forward;
+  private WordAligner reverse;
+
+  // Maps the corpus's words to the reverse model's: target word t is its source word
+  // t + 1, after NULL, and source word s is its target word s
+  private Vocabulary reverseVocabulary;
+
+  public SymmetrizedAligner() {
+    configure(new HashMap<String, String>());
+  }
+
+  public void configure(Map<String, String> options) {
+    if (options.containsKey("-symmetrize")) {
+      heuristic = options.get("-symmetrize");
+      if (!heuristic.equals(INTERSECT) && !heuristic.equals(UNION) && !heuristic.equals(GROW_DIAG_FINAL)) {
+        throw new RuntimeException("Unknown -symmetrize heuristic: " + heuristic);
+      }
+    }
+    String baseModel = options.containsKey("-baseModel") ?
+        options.get("-baseModel") : "cs224n.wordaligner.IBM1Model";
+    try {
+      Class<?> modelClass = Class.forName(baseModel);
+      forward = (WordAligner) modelClass.getDeclaredConstructor().newInstance();
+      reverse = (WordAligner) modelClass.getDeclaredConstructor().newInstance();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+
+    // The two directions train side by side, so each gets half of the threads
+    Map<String, String> forwardOptions = new HashMap<String, String>(options);
+    if (options.containsKey("-threads")) {
+      int numThreads = Math.max(1, Integer.parseInt(options.get("-threads")));
+      forwardOptions.put("-threads", String.valueOf(Math.max(1, numThreads / 2)));
+    }
+    Map<String, String> reverseOptions = new HashMap<String, String>(forwardOptions);
+    String simpleName = baseModel.substring(baseModel.lastIndexOf('.') + 1);
+    reverseOptions.put("-ibm1File", reverseName(options.containsKey("-ibm1File") ?
+        options.get("-ibm1File") : IBM1Model.MODEL_FILE));
+    if (options.containsKey("-checkpointEvery") || options.containsKey("-checkpointFile")) {
+      reverseOptions.put("-checkpointFile", reverseName(options.containsKey("-checkpointFile") ?
+          options.get("-checkpointFile") : simpleName + ".checkpoint"));
+    }
+    if (options.containsKey("-metricsFile")) {
+      reverseOptions.put("-metricsFile", reverseName(options.get("-metricsFile")));
+    }
+    if (forward instanceof Configurable) {
+      ((Configurable) forward).configure(forwardOptions);
+      ((Configurable) reverse).configure(reverseOptions);
+    }
+  }
+
+  // IBM1Model_probTgivenS.bin -> IBM1Model_probTgivenS.reverse.bin
+  private static String reverseName(String file) {
+    int dot = file.lastIndexOf('.');
+    if (dot <= file.lastIndexOf('/'))
+      return file + ".reverse";
+    return file.substring(0, dot) + ".reverse" + file.substring(dot);
+  }
+
+  public void train(List<SentencePair> trainingPairs) {
+    train(new ListCorpus(trainingPairs));
+  }
+
+  public void train(final Corpus trainingPairs) {
+    // A first pass completes a streaming corpus's vocabulary before it is reversed
+    for (Iterator<SentencePair> it = trainingPairs.iterator(); it.hasNext(); it.next()) {
+      // nothing to do
+    }
+    Vocabulary vocabulary = trainingPairs.getVocabulary();
+    reverseVocabulary = new Vocabulary();
+    for (int target = 0; target < vocabulary.targetSize(); target++) {
+      reverseVocabulary.addSourceWord(vocabulary.getTargetWord(target));
+    }
+    for (int source = 0; source < vocabulary.sourceSize(); source++) {
+      reverseVocabulary.addTargetWord(vocabulary.getSourceWord(source));
+    }
+    if (reverseVocabulary.sourceSize() != vocabulary.targetSize() + 1) {
+      throw new RuntimeException("Target vocabulary contains " + WordAligner.NULL_WORD);
+    }
+
+    final Corpus reverseTrainingPairs = new Corpus() {
+      public Iterator<SentencePair> iterator() {
+        final Iterator<SentencePair> pairs = trainingPairs.iterator();
+        return new Iterator<SentencePair>() {
+          public boolean hasNext() {
+            return pairs.hasNext();
+          }
+          public SentencePair next() {
+            return reverse(pairs.next());
+          }
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+      public Vocabulary getVocabulary() {
+        return reverseVocabulary;
+      }
+    };
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> reverseTraining = executor.submit(new Runnable() {
+        public void run() {
+          reverse.train(reverseTrainingPairs);
+        }
+      });
+      forward.train(trainingPairs);
+      reverseTraining.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  // The pair with its sides swapped, in reverseVocabulary's IDs. The words are shared.
+  private SentencePair reverse(SentencePair pair) {
+    int[] targetIds = pair.getTargetIds();
+    int[] reverseSourceIds = new int[targetIds.length];
+    for (int i = 0; i < targetIds.length; i++) {
+      reverseSourceIds[i] = targetIds[i] + 1;
+    }
+    return new SentencePair(pair.getSentenceID(), pair.getSourceFile(), pair.getSourceWords(),
+        pair.getTargetWords(), pair.getSourceIds(), reverseSourceIds, reverseVocabulary);
+  }
+
+  public Alignment align(SentencePair sentencePair) {
+    return symmetrize(forward.align(sentencePair), reverse.align(reverse(sentencePair)),
+        sentencePair.getTargetIds().length, sentencePair.getSourceIds().length);
+  }
+
+  public List<Alignment> alignAll(List<SentencePair> sentencePairs) {
+    List<SentencePair> reversePairs = new ArrayList<SentencePair>(sentencePairs.size());
+    for (SentencePair sentencePair : sentencePairs) {
+      reversePairs.add(reverse(sentencePair));
+    }
+    List<Alignment> forwardAlignments = WordAligners.alignAll(forward, sentencePairs);
+    List<Alignment> reverseAlignments = WordAligners.alignAll(reverse, reversePairs);
+    List<Alignment> alignments = new ArrayList<Alignment>(sentencePairs.size());
+    for (int k = 0; k < sentencePairs.size(); k++) {
+      SentencePair sentencePair = sentencePairs.get(k);
+      alignments.add(symmetrize(forwardAlignments.get(k), reverseAlignments.get(k),
+          sentencePair.getTargetIds().length, sentencePair.getSourceIds().length));
+    }
+    return alignments;
+  }
+
+  // Combines a target-given-source alignment with a source-given-target one, whose
+  // positions are the other way around, for a pair with m target and n source words
+  private Alignment symmetrize(Alignment forwardAlignment, Alignment reverseAlignment, int m, int n) {
+    boolean[] forwardGrid = new boolean[m * n];
+    boolean[] reverseGrid = new boolean[m * n];
+    for (int i = 0; i < Math.min(m, forwardAlignment.targetBound()); i++) {
+      for (int j = forwardAlignment.nextAlignedSource(i, 0); j >= 0 && j < n; j = forwardAlignment.nextAlignedSource(i, j + 1))
+        forwardGrid[i * n + j] = true;
+    }
+    for (int j = 0; j < Math.min(n, reverseAlignment.targetBound()); j++) {
+      for (int i = reverseAlignment.nextAlignedSource(j, 0); i >= 0 && i < m; i = reverseAlignment.nextAlignedSource(j, i + 1))
+        reverseGrid[i * n + j] = true;
+    }
+
+    boolean[] grid = new boolean[m * n];
+    for (int cell = 0; cell < grid.length; cell++) {
+      grid[cell] = heuristic.equals(UNION) ? forwardGrid[cell] || reverseGrid[cell]
+          : forwardGrid[cell] && reverseGrid[cell];
+    }
+    if (heuristic.equals(GROW_DIAG_FINAL)) {
+      growDiagFinal(grid, forwardGrid, reverseGrid, m, n);
+    }
+
+    Alignment alignment = new Alignment();
+    for (int i = 0; i < m; i++) {
+      for (int j = 0; j < n; j++) {
+        if (grid[i * n + j])
+          alignment.addPredictedAlignment(i, j);
+      }
+    }
+    return alignment;
+  }
+
+  // Grows the intersection in grid towards the union through neighboring points, diagonal
+  // ones included, that align a still unaligned word; then adds points of each direction
+  // that do the same
+  private static void growDiagFinal(boolean[] grid, boolean[] forwardGrid, boolean[] reverseGrid, int m, int n) {
+    int[] targetLinks = new int[m];
+    int[] sourceLinks = new int[n];
+    for (int i = 0; i < m; i++) {
+      for (int j = 0; j < n; j++) {
+        if (grid[i * n + j]) {
+          targetLinks[i]++;
+          sourceLinks[j]++;
+        }
+      }
+    }
+
+    boolean added = true;
+    while (added) {
+      added = false;
+      for (int i = 0; i < m; i++) {
+        for (int j = 0; j < n; j++) {
+          if (!grid[i * n + j])
+            continue;
+          for (int di = -1; di <= 1; di++) {
+            for (int dj = -1; dj <= 1; dj++) {
+              int ni = i + di;
+              int nj = j + dj;
+              if ((di == 0 && dj == 0) || ni < 0 || ni >= m || nj < 0 || nj >= n)
+                continue;
+              int cell = ni * n + nj;
+              if (!grid[cell] && (targetLinks[ni] == 0 || sourceLinks[nj] == 0)
+                  && (forwardGrid[cell] || reverseGrid[cell])) {
+                grid[cell] = true;
+                targetLinks[ni]++;
+                sourceLinks[nj]++;
+                added = true;
+              }
+            }
+          }
+        }
+      }
+    }
+
+    for (boolean[] directionGrid : new boolean[][] { forwardGrid, reverseGrid }) {
+      for (int i = 0; i < m; i++) {
+        for (int j = 0; j < n; j++) {
+          int cell = i * n + j;
+          if (directionGrid[cell] && !grid[cell] && (targetLinks[i] == 0 || sourceLinks[j] == 0)) {
+            grid[cell] = true;
+            targetLinks[i]++;
+            sourceLinks[j]++;
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package cs224n.wordaligner;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Records one row of measurements per EM iteration: E-step and M-step wall
+ * time, throughput, log likelihood, model table sizes, heap use and time
+ * spent in garbage collection.  Rows are written to a CSV file, or to a
+ * JSON Lines file (one object per line) if the name ends in ".json", and
+ * flushed as they are recorded so a run can be watched while it trains.
+ *
+ * Usage, once per iteration:
+ * <pre>
+ *   metrics.startIteration();
+ *   ... E-step ...
+ *   metrics.endEStep(numPairs, numTokens);
+ *   ... M-step ...
+ *   metrics.endIteration(iteration, logLikelihood, translationEntries, distortionCells);
+ * </pre>
+ * With no file, nothing is measured or written.
+ */
+public class TrainingMetrics {
+
+  private static final String[] COLUMNS = {
+    "model", "iteration", "e_step_ms", "m_step_ms", "pairs", "tokens", "pairs_per_sec",
+    "tokens_per_sec", "log_likelihood", "translation_entries", "distortion_cells",
+    "heap_used_bytes", "gc_ms"
+  };
+
+  private final String model;
+  private final PrintWriter out;
+  private final boolean json;
+
+  private long iterationStart;
+  private long eStepEnd;
+  private long gcStart;
+  private int pairs;
+  private long tokens;
+
+  /**
+   * Writes metrics for the named model to the given file, or nowhere if
+   * the file is null.
+   */
+  public TrainingMetrics(String model, String file) {
+    this.model = model;
+    this.json = file != null && file.endsWith(".json");
+    if (file == null) {
+      out = null;
+      return;
+    }
+    try {
+      out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (!json) {
+      StringBuilder header = new StringBuilder();
+      for (int k = 0; k < COLUMNS.length; k++) {
+        if (k > 0)
+          header.append(',');
+        header.append(COLUMNS[k]);
+      }
+      out.println(header);
+      out.flush();
+    }
+  }
+
+  public boolean isEnabled() {
+    return out != null;
+  }
+
+  public void startIteration() {
+    if (out == null)
+      return;
+    gcStart = gcTimeMillis();
+    iterationStart = System.nanoTime();
+  }
+
+  /**
+   * Marks the end of the E-step, which saw the given numbers of sentence
+   * pairs and words (source plus target).
+   */
+  public void endEStep(int numPairs, long numTokens) {
+    if (out == null)
+      return;
+    eStepEnd = System.nanoTime();
+    pairs = numPairs;
+    tokens = numTokens;
+  }
+
+  /**
+   * Marks the end of the M-step and writes the iteration's row.
+   */
+  public void endIteration(int iteration, double logLikelihood, long translationEntries, long distortionCells) {
+    if (out == null)
+      return;
+    long end = System.nanoTime();
+    double eStepSeconds = (eStepEnd - iterationStart) / 1e9;
+    Object[] values = {
+      model,
+      iteration,
+      (eStepEnd - iterationStart) / 1000000,
+      (end - eStepEnd) / 1000000,
+      pairs,
+      tokens,
+      eStepSeconds > 0 ? pairs / eStepSeconds : 0.0,
+      eStepSeconds > 0 ? tokens / eStepSeconds : 0.0,
+      logLikelihood,
+      translationEntries,
+      distortionCells,
+      ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(),
+      gcTimeMillis() - gcStart
+    };
+
+    StringBuilder row = new StringBuilder();
+    if (json)
+      row.append('{');
+    for (int k = 0; k < COLUMNS.length; k++) {
+      if (k > 0)
+        row.append(',');
+      if (json)
+        row.append('"').append(COLUMNS[k]).append("\":");
+      row.append(format(values[k]));
+    }
+    if (json)
+      row.append('}');
+    out.println(row);
+    out.flush();
+  }
+
+  public void close() {
+    if (out != null)
+      out.close();
+  }
+
+  private String format(Object value) {
+    if (value instanceof String)
+      return json ? "\"" + value + "\"" : (String) value;
+    if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite()))
+      return json ? "null" : value.toString();
+    return value.toString();
+  }
+
+  // Total time all collectors have spent, in ms. Collectors that do not
+  // report it are skipped.
+  private static long gcTimeMillis() {
+    long total = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      long time = gc.getCollectionTime();
+      if (time > 0)
+        total += time;
+    }
+    return total;
+  }
+}
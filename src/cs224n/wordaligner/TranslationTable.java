@@ -0,0 +1,409 @@
+package cs224n.wordaligner;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import cs224n.util.CounterMap;
+
+/**
+ * Sparse table of t(target | source) values indexed by Vocabulary IDs.  Each
+ * source ID owns a row, an open-addressing hash table from target IDs to
+ * doubles, so lookups never hash a String or box a value.
+ *
+ * Entries live at fixed slots between insertions, so callers can find a slot
+ * once and then read or write its value directly.  newAccumulator() returns
+ * count arrays laid out slot-for-slot like the table, which is how the EM
+ * models collect expected counts without a second hash lookup.
+ *
+ * A single-precision table stores its values as floats, halving their
+ * memory.  Values are still read and written as doubles, and accumulators
+ * are double either way.
+ */
+public class TranslationTable implements Serializable {
+  private static final long serialVersionUID = -4013405963386011230L;
+
+  private static final int EMPTY = -1;
+  private static final int INITIAL_CAPACITY = 4;
+
+  private int[][] keys;
+  // Exactly one of these holds the values
+  private double[][] values;
+  private float[][] floatValues;
+  private int[] sizes;
+  private int size;
+
+  public TranslationTable(int numSources) {
+    this(numSources, false);
+  }
+
+  public TranslationTable(int numSources, boolean singlePrecision) {
+    keys = new int[Math.max(numSources, 1)][];
+    if (singlePrecision)
+      floatValues = new float[keys.length][];
+    else
+      values = new double[keys.length][];
+    sizes = new int[keys.length];
+  }
+
+  public boolean isSinglePrecision() {
+    return floatValues != null;
+  }
+
+  /**
+   * Returns a deep copy of the table, with the same slot layout.
+   */
+  public TranslationTable copy() {
+    TranslationTable copy = new TranslationTable(keys.length, isSinglePrecision());
+    for (int source = 0; source < keys.length; source++) {
+      if (keys[source] != null) {
+        copy.keys[source] = keys[source].clone();
+        if (floatValues != null)
+          copy.floatValues[source] = floatValues[source].clone();
+        else
+          copy.values[source] = values[source].clone();
+      }
+    }
+    copy.sizes = sizes.clone();
+    copy.size = size;
+    return copy;
+  }
+
+  /**
+   * Returns a single-precision copy of the table, with the same slot
+   * layout, or the table itself if it already is one.
+   */
+  public TranslationTable withSinglePrecision() {
+    if (floatValues != null)
+      return this;
+    TranslationTable copy = new TranslationTable(keys.length, true);
+    for (int source = 0; source < keys.length; source++) {
+      if (keys[source] == null)
+        continue;
+      copy.keys[source] = keys[source].clone();
+      float[] row = new float[values[source].length];
+      for (int slot = 0; slot < row.length; slot++)
+        row[slot] = (float) values[source][slot];
+      copy.floatValues[source] = row;
+    }
+    copy.sizes = sizes.clone();
+    copy.size = size;
+    return copy;
+  }
+
+  /**
+   * Number of source rows the table can currently hold.
+   */
+  public int numSources() {
+    return keys.length;
+  }
+
+  /**
+   * Total number of (source, target) entries.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Number of entries in the row for the given source.
+   */
+  public int rowSize(int source) {
+    return source < sizes.length ? sizes[source] : 0;
+  }
+
+  /**
+   * Number of slots in the row for the given source.  Slots whose
+   * targetAt() is negative are empty.
+   */
+  public int capacity(int source) {
+    return source < keys.length && keys[source] != null ? keys[source].length : 0;
+  }
+
+  public int targetAt(int source, int slot) {
+    return keys[source][slot];
+  }
+
+  public double valueAt(int source, int slot) {
+    return floatValues != null ? floatValues[source][slot] : values[source][slot];
+  }
+
+  public void setValueAt(int source, int slot, double value) {
+    if (floatValues != null)
+      floatValues[source][slot] = (float) value;
+    else
+      values[source][slot] = value;
+  }
+
+  /**
+   * Returns the slot holding the given entry, or -1 if it is absent.
+   */
+  public int find(int source, int target) {
+    if (source < 0 || source >= keys.length || target < 0)
+      return -1;
+    int[] row = keys[source];
+    if (row == null)
+      return -1;
+    int mask = row.length - 1;
+    for (int slot = hash(target) & mask; ; slot = (slot + 1) & mask) {
+      int key = row[slot];
+      if (key == target)
+        return slot;
+      if (key == EMPTY)
+        return -1;
+    }
+  }
+
+  /**
+   * Gets the value of the given entry, or zero if it is absent.
+   */
+  public double get(int source, int target) {
+    int slot = find(source, target);
+    return slot < 0 ? 0.0 : valueAt(source, slot);
+  }
+
+  /**
+   * Takes the value of every entry that the other table also has, e.g. from
+   * a checkpoint.  The other entries keep theirs, and the layout is unchanged.
+   */
+  public void copyValuesFrom(TranslationTable other) {
+    for (int source = 0; source < numSources(); source++) {
+      for (int slot = 0; slot < capacity(source); slot++) {
+        int target = targetAt(source, slot);
+        if (target < 0)
+          continue;
+        int otherSlot = other.find(source, target);
+        if (otherSlot >= 0)
+          setValueAt(source, slot, other.valueAt(source, otherSlot));
+      }
+    }
+  }
+
+  public void set(int source, int target, double value) {
+    int slot = ensureSlot(source, target);
+    setValueAt(source, slot, value);
+  }
+
+  public void increment(int source, int target, double increment) {
+    int slot = ensureSlot(source, target);
+    setValueAt(source, slot, valueAt(source, slot) + increment);
+  }
+
+  /**
+   * Returns zeroed count arrays with the same row and slot layout as this
+   * table.  The layout stays valid until the next insertion.
+   */
+  public double[][] newAccumulator() {
+    double[][] counts = new double[keys.length][];
+    for (int source = 0; source < keys.length; source++) {
+      if (keys[source] != null)
+        counts[source] = new double[keys[source].length];
+    }
+    return counts;
+  }
+
+  /**
+   * Like newAccumulator(), but with arrays only for the rows of the given
+   * sources; the other rows are null.
+   */
+  public double[][] newAccumulator(int[] sources) {
+    double[][] counts = new double[keys.length][];
+    for (int source : sources) {
+      if (keys[source] != null)
+        counts[source] = new double[keys[source].length];
+    }
+    return counts;
+  }
+
+  /**
+   * Adds one set of accumulator arrays into another with the same layout.
+   */
+  public static void addCounts(double[][] counts, double[][] partialCounts) {
+    for (int source = 0; source < counts.length; source++) {
+      if (counts[source] == null || partialCounts[source] == null)
+        continue;
+      for (int slot = 0; slot < counts[source].length; slot++) {
+        counts[source][slot] += partialCounts[source][slot];
+      }
+    }
+  }
+
+  /**
+   * Removes the entries of each row, except the keepSource row, whose value
+   * is below threshold or which are not among the row's topK largest values.
+   * Ties at the top-k boundary are kept in slot order.  A topK of zero or
+   * less means no cap.  Rows are rebuilt, so earlier slots and accumulators
+   * are invalidated.
+   *
+   * @return the number of entries removed
+   */
+  public int prune(double threshold, int topK, int keepSource) {
+    int removed = 0;
+    for (int source = 0; source < keys.length; source++) {
+      if (source == keepSource || keys[source] == null)
+        continue;
+      int[] row = keys[source];
+
+      // Entries strictly above the k-th largest value are kept, then as many
+      // entries equal to it as still fit
+      double kth = Double.NEGATIVE_INFINITY;
+      int equalToKeep = Integer.MAX_VALUE;
+      if (topK > 0 && sizes[source] > topK) {
+        double[] sorted = new double[sizes[source]];
+        int k = 0;
+        for (int slot = 0; slot < row.length; slot++) {
+          if (row[slot] != EMPTY)
+            sorted[k++] = valueAt(source, slot);
+        }
+        Arrays.sort(sorted);
+        kth = sorted[sorted.length - topK];
+        equalToKeep = topK;
+        for (double value : sorted) {
+          if (value > kth)
+            equalToKeep--;
+        }
+      }
+
+      int rowRemoved = 0;
+      for (int slot = 0; slot < row.length; slot++) {
+        if (row[slot] == EMPTY)
+          continue;
+        double value = valueAt(source, slot);
+        boolean keep = value >= threshold && value >= kth;
+        if (keep && value == kth) {
+          keep = equalToKeep > 0;
+          equalToKeep--;
+        }
+        if (!keep) {
+          row[slot] = EMPTY;
+          rowRemoved++;
+        }
+      }
+      if (rowRemoved == 0)
+        continue;
+      sizes[source] -= rowRemoved;
+      size -= rowRemoved;
+      removed += rowRemoved;
+      int capacity = INITIAL_CAPACITY;
+      while (capacity < 2 * sizes[source])
+        capacity <<= 1;
+      rehash(source, capacity);
+    }
+    return removed;
+  }
+
+  /**
+   * Copies the table into a String-keyed CounterMap, for serialization in a
+   * form that does not depend on the IDs assigned in this run.
+   */
+  public CounterMap<String, String> toCounterMap(Vocabulary vocabulary) {
+    CounterMap<String, String> counterMap = new CounterMap<String, String>();
+    for (int source = 0; source < keys.length; source++) {
+      for (int slot = 0; slot < capacity(source); slot++) {
+        int target = keys[source][slot];
+        if (target != EMPTY) {
+          counterMap.setCount(vocabulary.getSourceWord(source), vocabulary.getTargetWord(target),
+              valueAt(source, slot));
+        }
+      }
+    }
+    return counterMap;
+  }
+
+  /**
+   * Builds a table from a String-keyed CounterMap.  Entries for words the
+   * vocabulary has never seen are dropped, since no sentence can use them.
+   */
+  public static TranslationTable fromCounterMap(CounterMap<String, String> counterMap, Vocabulary vocabulary) {
+    TranslationTable table = new TranslationTable(vocabulary.sourceSize());
+    for (String sourceWord : counterMap.keySet()) {
+      int source = vocabulary.getSourceId(sourceWord);
+      if (source < 0)
+        continue;
+      for (String targetWord : counterMap.getCounter(sourceWord).keySet()) {
+        int target = vocabulary.getTargetId(targetWord);
+        if (target >= 0)
+          table.set(source, target, counterMap.getCount(sourceWord, targetWord));
+      }
+    }
+    return table;
+  }
+
+  // -----------------------------------------------------------------------
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private int ensureSlot(int source, int target) {
+    if (target < 0)
+      throw new IllegalArgumentException("Negative target ID: " + target);
+    if (source >= keys.length)
+      growSources(source + 1);
+    if (keys[source] == null) {
+      keys[source] = newRow(INITIAL_CAPACITY);
+      if (floatValues != null)
+        floatValues[source] = new float[INITIAL_CAPACITY];
+      else
+        values[source] = new double[INITIAL_CAPACITY];
+    }
+    int slot = find(source, target);
+    if (slot >= 0)
+      return slot;
+    // Keep rows at most half full so probe sequences stay short
+    if (2 * (sizes[source] + 1) > keys[source].length)
+      rehash(source, 2 * keys[source].length);
+    int[] row = keys[source];
+    int mask = row.length - 1;
+    slot = hash(target) & mask;
+    while (row[slot] != EMPTY)
+      slot = (slot + 1) & mask;
+    row[slot] = target;
+    sizes[source]++;
+    size++;
+    return slot;
+  }
+
+  private void growSources(int minSources) {
+    int newLength = Math.max(minSources, 2 * keys.length);
+    keys = Arrays.copyOf(keys, newLength);
+    if (floatValues != null)
+      floatValues = Arrays.copyOf(floatValues, newLength);
+    else
+      values = Arrays.copyOf(values, newLength);
+    sizes = Arrays.copyOf(sizes, newLength);
+  }
+
+  private void rehash(int source, int newCapacity) {
+    int[] oldKeys = keys[source];
+    double[] oldValues = floatValues != null ? null : values[source];
+    float[] oldFloatValues = floatValues != null ? floatValues[source] : null;
+    int[] row = newRow(newCapacity);
+    double[] rowValues = oldValues != null ? new double[newCapacity] : null;
+    float[] rowFloatValues = oldFloatValues != null ? new float[newCapacity] : null;
+    int mask = newCapacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] == EMPTY)
+        continue;
+      int slot = hash(oldKeys[i]) & mask;
+      while (row[slot] != EMPTY)
+        slot = (slot + 1) & mask;
+      row[slot] = oldKeys[i];
+      if (rowValues != null)
+        rowValues[slot] = oldValues[i];
+      else
+        rowFloatValues[slot] = oldFloatValues[i];
+    }
+    keys[source] = row;
+    if (rowValues != null)
+      values[source] = rowValues;
+    else
+      floatValues[source] = rowFloatValues;
+  }
+
+  private static int[] newRow(int capacity) {
+    int[] row = new int[capacity];
+    Arrays.fill(row, EMPTY);
+    return row;
+  }
+}
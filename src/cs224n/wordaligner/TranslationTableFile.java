@@ -0,0 +1,238 @@
+package cs224n.wordaligner;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import cs224n.util.CounterMap;
+
+/**
+ * Reads and writes a TranslationTable in a compact binary format, which
+ * replaces serializing a whole CounterMap.  Loading walks the records
+ * through memory-mapped windows, with no per-record object or stream
+ * overhead, but copies every entry into a heap TranslationTable: lookups
+ * are not served from the file, so a loaded model takes as much heap as a
+ * trained one.  Every model that loads a table goes on to train it.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   int    MAGIC
+ *   int    VERSION
+ *   int    bytes per probability (4 = float, 8 = double)
+ *   int    number of source words S, then S strings
+ *   int    number of target words T, then T strings
+ *   long   number of records R
+ *   R x    (int source, int target, float|double prob), sorted by (source, target)
+ * </pre>
+ * Each string is an int byte length followed by UTF-8 bytes.  Source and
+ * target IDs in the records index the file's own string tables, so a model
+ * can be loaded against a Vocabulary built by a different run.
+ *
+ * Run main() to convert an IBM1Model_probTgivenS.ser file.
+ */
+public class TranslationTableFile {
+
+  public static final int MAGIC = 0x49424d54; // "IBMT"
+  public static final int VERSION = 1;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // Records are mapped in windows of at most this many bytes
+  private static final long MAX_WINDOW = 1L << 30;
+
+  /**
+   * Writes the table with double precision probabilities, or float ones if
+   * it is a single-precision table.
+   */
+  public static void write(TranslationTable table, Vocabulary vocabulary, File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      write(table, vocabulary, out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the table to a stream, e.g. as one section of a larger file.
+   */
+  public static void write(TranslationTable table, Vocabulary vocabulary, DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    boolean singlePrecision = table.isSinglePrecision();
+    out.writeInt(singlePrecision ? 4 : 8);
+    out.writeInt(vocabulary.sourceSize());
+    for (int source = 0; source < vocabulary.sourceSize(); source++) {
+      writeString(out, vocabulary.getSourceWord(source));
+    }
+    out.writeInt(vocabulary.targetSize());
+    for (int target = 0; target < vocabulary.targetSize(); target++) {
+      writeString(out, vocabulary.getTargetWord(target));
+    }
+
+    out.writeLong(table.size());
+    for (int source = 0; source < table.numSources(); source++) {
+      int rowSize = table.rowSize(source);
+      if (rowSize == 0)
+        continue;
+      // Sort the row's entries by target ID
+      long[] order = new long[rowSize];
+      int k = 0;
+      for (int slot = 0; slot < table.capacity(source); slot++) {
+        int target = table.targetAt(source, slot);
+        if (target >= 0)
+          order[k++] = ((long) target << 32) | slot;
+      }
+      Arrays.sort(order);
+      for (long entry : order) {
+        int slot = (int) entry;
+        out.writeInt(source);
+        out.writeInt(table.targetAt(source, slot));
+        if (singlePrecision)
+          out.writeFloat((float) table.valueAt(source, slot));
+        else
+          out.writeDouble(table.valueAt(source, slot));
+      }
+    }
+  }
+
+  /**
+   * Loads a table, mapping its words to IDs of the given vocabulary.
+   * Entries for words the vocabulary has never seen are dropped, since no
+   * sentence can use them.
+   */
+  public static TranslationTable read(File file, Vocabulary vocabulary) throws IOException {
+    return read(file, vocabulary, false);
+  }
+
+  /**
+   * Loads a table into a single-precision or double-precision
+   * TranslationTable, whatever the file's probability width.
+   */
+  public static TranslationTable read(File file, Vocabulary vocabulary, boolean singlePrecision) throws IOException {
+    return read(file, vocabulary, singlePrecision, false);
+  }
+
+  /**
+   * With addWords, words the vocabulary has never seen are added to it and
+   * keep their entries, e.g. to carry on training a saved model.
+   */
+  public static TranslationTable read(File file, Vocabulary vocabulary, boolean singlePrecision, boolean addWords)
+      throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return read(raf.getChannel(), 0, vocabulary, file.toString(), singlePrecision, addWords);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Loads a table written at the given position of a file, e.g. by
+   * write(TranslationTable, Vocabulary, DataOutputStream).
+   */
+  public static TranslationTable read(FileChannel channel, long start, Vocabulary vocabulary, String file)
+      throws IOException {
+    return read(channel, start, vocabulary, file, false);
+  }
+
+  public static TranslationTable read(FileChannel channel, long start, Vocabulary vocabulary, String file,
+      boolean singlePrecision) throws IOException {
+    return read(channel, start, vocabulary, file, singlePrecision, false);
+  }
+
+  public static TranslationTable read(FileChannel channel, long start, Vocabulary vocabulary, String file,
+      boolean singlePrecision, boolean addWords) throws IOException {
+    long fileSize = channel.size();
+    MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(fileSize - start, MAX_WINDOW));
+    if (fileSize - start < 12 || header.getInt() != MAGIC) {
+      throw new IOException("Not a translation table file: " + file);
+    }
+    int version = header.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported translation table version " + version + " in " + file);
+    }
+    int valueBytes = header.getInt();
+    if (valueBytes != 4 && valueBytes != 8) {
+      throw new IOException("Bad probability width " + valueBytes + " in " + file);
+    }
+
+    int[] sourceIds = new int[header.getInt()];
+    for (int k = 0; k < sourceIds.length; k++) {
+      String word = readString(header);
+      sourceIds[k] = addWords ? vocabulary.addSourceWord(word) : vocabulary.getSourceId(word);
+    }
+    int[] targetIds = new int[header.getInt()];
+    for (int k = 0; k < targetIds.length; k++) {
+      String word = readString(header);
+      targetIds[k] = addWords ? vocabulary.addTargetWord(word) : vocabulary.getTargetId(word);
+    }
+    long numRecords = header.getLong();
+
+    TranslationTable table = new TranslationTable(vocabulary.sourceSize(), singlePrecision);
+    int recordBytes = 8 + valueBytes;
+    long position = start + header.position();
+    long recordsPerWindow = MAX_WINDOW / recordBytes;
+    for (long first = 0; first < numRecords; first += recordsPerWindow) {
+      long count = Math.min(recordsPerWindow, numRecords - first);
+      ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, position, count * recordBytes);
+      for (long r = 0; r < count; r++) {
+        int source = sourceIds[records.getInt()];
+        int target = targetIds[records.getInt()];
+        double prob = valueBytes == 8 ? records.getDouble() : records.getFloat();
+        if (source >= 0 && target >= 0)
+          table.set(source, target, prob);
+      }
+      position += count * recordBytes;
+    }
+    return table;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * Converts a serialized CounterMap model to the binary format.
+   *
+   * Usage: TranslationTableFile IBM1Model_probTgivenS.ser IBM1Model_probTgivenS.bin
+   */
+  @SuppressWarnings("unchecked")
+  public static void main(String[] args) throws IOException, ClassNotFoundException {
+    if (args.length != 2) {
+      System.err.println("Usage: java cs224n.wordaligner.TranslationTableFile <in.ser> <out.bin>");
+      System.exit(1);
+    }
+    ObjectInputStream in = new ObjectInputStream(new FileInputStream(args[0]));
+    CounterMap<String, String> counterMap = (CounterMap<String, String>) in.readObject();
+    in.close();
+
+    Vocabulary vocabulary = new Vocabulary();
+    for (String sourceWord : counterMap.keySet()) {
+      vocabulary.indexSourceWords(Arrays.asList(sourceWord));
+      vocabulary.indexTargetWords(new ArrayList<String>(counterMap.getCounter(sourceWord).keySet()));
+    }
+    TranslationTable table = TranslationTable.fromCounterMap(counterMap, vocabulary);
+    write(table, vocabulary, new File(args[1]));
+    System.out.println("Wrote " + table.size() + " entries to " + args[1]);
+  }
+}
@@ -0,0 +1,104 @@
+package cs224n.wordaligner;
+
+import java.io.Serializable;
+import java.util.List;
+
+import cs224n.util.Indexer;
+
+/**
+ * Assigns dense integer IDs to the source and target words of a corpus so
+ * that models can index their tables directly instead of hashing Strings.
+ * Source and target words are numbered independently.  The NULL word is
+ * always source word NULL_ID.
+ *
+ * A single Vocabulary is shared by every SentencePair loaded for a run.
+ */
+public class Vocabulary implements Serializable {
+  private static final long serialVersionUID = 2846035125317602961L;
+
+  /**
+   * The source ID of WordAligner.NULL_WORD.
+   */
+  public static final int NULL_ID = 0;
+
+  private final Indexer<String> sourceWords;
+  private final Indexer<String> targetWords;
+
+  public Vocabulary() {
+    sourceWords = new Indexer<String>();
+    targetWords = new Indexer<String>();
+    sourceWords.addAndGetIndex(WordAligner.NULL_WORD);
+  }
+
+  /**
+   * Number of source word IDs handed out so far, including NULL.
+   */
+  public int sourceSize() {
+    return sourceWords.size();
+  }
+
+  /**
+   * Number of target word IDs handed out so far.
+   */
+  public int targetSize() {
+    return targetWords.size();
+  }
+
+  /**
+   * Returns the ID of a source word, or -1 if it has never been seen.
+   */
+  public int getSourceId(String word) {
+    return sourceWords.indexOf(word);
+  }
+
+  /**
+   * Returns the ID of a target word, or -1 if it has never been seen.
+   */
+  public int getTargetId(String word) {
+    return targetWords.indexOf(word);
+  }
+
+  public String getSourceWord(int id) {
+    return sourceWords.get(id);
+  }
+
+  public String getTargetWord(int id) {
+    return targetWords.get(id);
+  }
+
+  /**
+   * Returns the ID of a source word, assigning a new ID if it is unseen.
+   */
+  public int addSourceWord(String word) {
+    return sourceWords.addAndGetIndex(word);
+  }
+
+  /**
+   * Returns the ID of a target word, assigning a new ID if it is unseen.
+   */
+  public int addTargetWord(String word) {
+    return targetWords.addAndGetIndex(word);
+  }
+
+  /**
+   * Maps each source word to its ID, assigning new IDs to unseen words.
+   */
+  public int[] indexSourceWords(List<String> words) {
+    int[] ids = new int[words.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = sourceWords.addAndGetIndex(words.get(i));
+    }
+    return ids;
+  }
+
+  /**
+   * Maps each target word to its ID, assigning new IDs to unseen words.
+   */
+  public int[] indexTargetWords(List<String> words) {
+    int[] ids = new int[words.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = targetWords.addAndGetIndex(words.get(i));
+    }
+    return ids;
+  }
+}
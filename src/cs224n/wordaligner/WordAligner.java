@@ -36,4 +36,13 @@ public interface WordAligner extends Serializable {
    * @param trainingData The sentence pairs for training the aligner
    */
   public void train(List<SentencePair> trainingData);
+
+  /**
+   * Learn the model parameters from a corpus that may be streamed from disk.
+   * Models should make as many passes over it as they need rather than
+   * copying it into memory.
+   * 
+   * @param trainingData The sentence pairs for training the aligner
+   */
+  public void train(Corpus trainingData);
 }
@@ -0,0 +1,51 @@
+package cs224n.wordaligner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Static helpers for running WordAligners.
+ */
+public class WordAligners {
+
+  /**
+   * Aligns every pair, using the aligner's batch implementation if it is a
+   * BatchWordAligner and one align() call per pair otherwise.
+   *
+   * @return the alignment of each pair, in input order
+   */
+  public static List<Alignment> alignAll(WordAligner wordAligner, List<SentencePair> sentencePairs) {
+    if (wordAligner instanceof BatchWordAligner) {
+      return ((BatchWordAligner) wordAligner).alignAll(sentencePairs);
+    }
+    List<Alignment> alignments = new ArrayList<Alignment>(sentencePairs.size());
+    for (SentencePair sentencePair : sentencePairs) {
+      alignments.add(wordAligner.align(sentencePair));
+    }
+    return alignments;
+  }
+
+  /**
+   * Returns the indices of the pairs ordered by (source length, target
+   * length), and by position among pairs of equal lengths, so that a batch
+   * aligner can visit each length bucket once.
+   */
+  public static int[] lengthBucketOrder(List<SentencePair> sentencePairs) {
+    // Sort (n, m, index) keys packed into longs. Lengths past 16 bits are
+    // clamped, which only merges buckets of absurdly long sentences.
+    long[] keys = new long[sentencePairs.size()];
+    for (int k = 0; k < keys.length; k++) {
+      SentencePair pair = sentencePairs.get(k);
+      long n = Math.min(pair.getSourceIds().length, 0xffff);
+      long m = Math.min(pair.getTargetIds().length, 0xffff);
+      keys[k] = (n << 48) | (m << 32) | k;
+    }
+    Arrays.sort(keys);
+    int[] order = new int[keys.length];
+    for (int k = 0; k < keys.length; k++) {
+      order[k] = (int) keys[k];
+    }
+    return order;
+  }
+}